@@ -1,5 +1,7 @@
 package com.joelsoncarl.androidremote;
 
+import java.util.Map;
+
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.FragmentTransaction;
@@ -7,7 +9,12 @@ import android.os.Bundle;
 import android.view.Menu;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.view.View.OnTouchListener;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 
 /**
@@ -17,6 +24,8 @@ public class MainActivity extends Activity {
 
     /** The RFB Client handler */
     private RfbClient m_rfbClient;
+    /** The saved macros for each server */
+    private RfbMacroStore m_macroStore;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -24,6 +33,7 @@ public class MainActivity extends Activity {
         setContentView(R.layout.activity_main_volume);
 
         m_rfbClient = new RfbClient(this);
+        m_macroStore = new RfbMacroStore(this);
 
         final ActionBar actionBar = getActionBar();
 
@@ -41,13 +51,26 @@ public class MainActivity extends Activity {
                 else if (tab.getText().toString().compareTo(
                         getResources().getString(R.string.mouse_tab_name)) == 0) {
                     setContentView(R.layout.activity_main_mouse);
+                    ((TrackpadView) findViewById(R.id.mouse_trackpad)).setRfbClient(m_rfbClient);
                     findViewById(R.id.mouse_left_button).setOnTouchListener(new MouseTouchListener());
                     findViewById(R.id.mouse_right_button).setOnTouchListener(new MouseTouchListener());
                 }
+                else if (tab.getText().toString().compareTo(
+                        getResources().getString(R.string.screen_tab_name)) == 0) {
+                    setContentView(R.layout.activity_main_screen);
+                    ((RemoteScreenView) findViewById(R.id.remote_screen)).setRfbClient(m_rfbClient);
+                }
+                else if (tab.getText().toString().compareTo(
+                        getResources().getString(R.string.macros_tab_name)) == 0) {
+                    setContentView(R.layout.activity_main_macros);
+                    m_rfbClient.m_macroMsg = (TextView) findViewById(R.id.macro_status);
+                    showMacros();
+                }
                 else if (tab.getText().toString().compareTo(
                         getResources().getString(R.string.connect_tab_name)) == 0) {
                     setContentView(R.layout.activity_main_connect);
                     m_rfbClient.m_connectMsg = (TextView) findViewById(R.id.connection_message);
+                    m_rfbClient.m_encodingMsg = (TextView) findViewById(R.id.encoding_status);
                 }
             }
 
@@ -61,6 +84,8 @@ public class MainActivity extends Activity {
         // Add tabs
         actionBar.addTab(actionBar.newTab().setText("Volume").setTabListener(tabListener));
         actionBar.addTab(actionBar.newTab().setText("Mouse").setTabListener(tabListener));
+        actionBar.addTab(actionBar.newTab().setText("Screen").setTabListener(tabListener));
+        actionBar.addTab(actionBar.newTab().setText("Macros").setTabListener(tabListener));
         actionBar.addTab(actionBar.newTab().setText("Connect").setTabListener(tabListener));
 
     }
@@ -88,6 +113,95 @@ public class MainActivity extends Activity {
         m_rfbClient.closeConnection();
     }
 
+    /**
+     * Called when the "Forget Certificate" button is pressed on the Connection Settings tab
+     * @param view
+     */
+    public void rfbForgetCertificate(View view) {
+        m_rfbClient.forgetCertificate();
+    }
+
+    /**
+     * Fills the Macros tab with a button for each macro saved for the
+     * current server
+     */
+    private void showMacros() {
+        String server = m_rfbClient.getServer();
+        TextView serverView = (TextView) findViewById(R.id.macro_server);
+        LinearLayout container = (LinearLayout) findViewById(R.id.macro_buttons_container);
+        container.removeAllViews();
+        if (server == null) {
+            serverView.setText(getResources().getString(R.string.macro_no_server));
+            return;
+        }
+        serverView.setText(server);
+        MacroButtonListener listener = new MacroButtonListener();
+        for (Map.Entry<String, String> macro : m_macroStore.getMacros(server).entrySet()) {
+            Button button = new Button(this);
+            button.setText(macro.getKey());
+            button.setTag(macro.getValue());
+            button.setOnClickListener(listener);
+            button.setOnLongClickListener(listener);
+            container.addView(button);
+        }
+    }
+
+    /**
+     * Called when the "Save" button is pressed on the Macros tab
+     * @param view
+     */
+    public void saveMacro(View view) {
+        String server = m_rfbClient.getServer();
+        String name = ((EditText) findViewById(R.id.macro_name_entry)).getText().toString().trim();
+        String definition = ((EditText) findViewById(R.id.macro_definition_entry)).getText().toString().trim();
+        if (server == null || name.length() == 0 || definition.length() == 0) {
+            return;
+        }
+        // Check it compiles now rather than when the button is pressed,
+        // allowing for the largest framebuffer RFB can describe
+        try {
+            RfbMacro.compile(definition, 65536, 65536);
+        } catch (IllegalArgumentException e) {
+            ((TextView) findViewById(R.id.macro_status)).setText(e.getMessage());
+            return;
+        }
+        ((TextView) findViewById(R.id.macro_status)).setText("");
+        m_macroStore.saveMacro(server, name, definition);
+        showMacros();
+    }
+
+    /**
+     * Called when the "Delete" button is pressed on the Macros tab
+     * @param view
+     */
+    public void deleteMacro(View view) {
+        String server = m_rfbClient.getServer();
+        String name = ((EditText) findViewById(R.id.macro_name_entry)).getText().toString().trim();
+        if (server == null || name.length() == 0) {
+            return;
+        }
+        m_macroStore.deleteMacro(server, name);
+        showMacros();
+    }
+
+    /**
+     * Runs a macro when its button is pressed, and loads it into the
+     * editor on a long press
+     */
+    private class MacroButtonListener implements OnClickListener, OnLongClickListener {
+        @Override
+        public void onClick(View view) {
+            m_rfbClient.runMacro((String) view.getTag());
+        }
+
+        @Override
+        public boolean onLongClick(View view) {
+            ((EditText) findViewById(R.id.macro_name_entry)).setText(((Button) view).getText());
+            ((EditText) findViewById(R.id.macro_definition_entry)).setText((String) view.getTag());
+            return true;
+        }
+    }
+
     /**
      * The OnTouchListener for the mouse buttons
      */
@@ -102,15 +216,19 @@ public class MainActivity extends Activity {
             else {
                 button = RfbClient.RIGHT_BUTTON;
             }
+            // Click wherever the trackpad has put the pointer
+            RfbPointerBatcher pointer = m_rfbClient.getPointer();
+            int x = pointer != null ? pointer.getX() : 0;
+            int y = pointer != null ? pointer.getY() : 0;
             // Determine if button is pressed or released and
             // act accordingly
             if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
                 view.setPressed(true);
-                m_rfbClient.mouseEvent(button, true, 0, 0);
+                m_rfbClient.mouseEvent(button, true, x, y);
             }
             else if (event.getActionMasked() == MotionEvent.ACTION_UP) {
                 view.setPressed(false);
-                m_rfbClient.mouseEvent(button, false, 0, 0);
+                m_rfbClient.mouseEvent(button, false, x, y);
             }
             return true;
         }
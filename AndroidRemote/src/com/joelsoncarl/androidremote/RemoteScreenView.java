@@ -0,0 +1,252 @@
+package com.joelsoncarl.androidremote;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Shows the remote screen, scaled to fit.
+ *
+ * The receiving thread only records damage and asks for a frame.  Once
+ * per display frame the damage collected since the last one is copied
+ * from the framebuffer into the back of two bitmaps, the bitmaps are
+ * swapped and only the damaged part of the view is invalidated.  The
+ * back bitmap also gets the previous frame's damage, which it missed
+ * while it was the front one.
+ *
+ * While the view is off screen (another tab, or the app in the
+ * background) no frames are asked for; decoding carries on and the
+ * damage keeps collecting, and the whole screen is copied on return.
+ */
+public class RemoteScreenView extends View {
+
+    /** Frame interval where the display's frame timing isn't available */
+    private static final long FALLBACK_FRAME_MS = 16;
+
+    private RfbClient m_rfbClient;
+    /** The bitmap being shown and the one being brought up to date */
+    private Bitmap m_front, m_back;
+    /** Damage copied into the front bitmap last frame, which m_back lacks */
+    private int [] m_previousDamage;
+    /** Set while a frame has been asked for but not yet run */
+    private AtomicBoolean m_framePending;
+    private boolean m_attached, m_visible;
+    private Rect m_srcRect, m_dstRect;
+    private Paint m_paint;
+    private Runnable m_renderFrame;
+
+    public RemoteScreenView(Context context) {
+        super(context);
+        init();
+    }
+
+    public RemoteScreenView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        m_previousDamage = new int [0];
+        m_framePending = new AtomicBoolean(false);
+        m_attached = false;
+        m_visible = false;
+        m_srcRect = new Rect();
+        m_dstRect = new Rect();
+        m_paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        m_renderFrame = new Runnable() {
+            public void run() {
+                renderFrame();
+            }
+        };
+    }
+
+    /**
+     * Connects the view to the client whose framebuffer it shows
+     */
+    public void setRfbClient(RfbClient client) {
+        m_rfbClient = client;
+        updateVisibility();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        m_attached = true;
+        updateVisibility();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        m_attached = false;
+        updateVisibility();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateVisibility();
+    }
+
+    /**
+     * Starts or stops drawing as the view comes and goes
+     */
+    private void updateVisibility() {
+        boolean visible = m_rfbClient != null && m_attached && getWindowVisibility() == VISIBLE;
+        if (visible == m_visible) {
+            return;
+        }
+        m_visible = visible;
+        if (visible) {
+            // Anything could have changed while we were away
+            m_front = null;
+            m_back = null;
+            m_rfbClient.setScreenView(this);
+            requestFrame();
+        }
+        else {
+            m_rfbClient.setScreenView(null);
+            removeCallbacks(m_renderFrame);
+            m_framePending.set(false);
+        }
+    }
+
+    /**
+     * Asks for the damage to be drawn on the next display frame.  Safe to
+     * call from any thread, and as often as liked.
+     */
+    public void requestFrame() {
+        if (m_framePending.compareAndSet(false, true)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                postOnNextFrame();
+            }
+            else {
+                postDelayed(m_renderFrame, FALLBACK_FRAME_MS);
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postOnNextFrame() {
+        postOnAnimation(m_renderFrame);
+    }
+
+    /**
+     * Brings the back bitmap up to date, swaps it to the front and
+     * invalidates the area that changed
+     */
+    private void renderFrame() {
+        m_framePending.set(false);
+        if (!m_visible) {
+            return;
+        }
+        RfbFramebuffer fb = m_rfbClient.getFramebuffer();
+        if (fb == null) {
+            return;
+        }
+        // Don't hold up the UI while an update is being decoded; the
+        // damage will still be there next frame
+        Lock lock = m_rfbClient.getFramebufferLock();
+        if (!lock.tryLock()) {
+            requestFrame();
+            return;
+        }
+        int [] damage;
+        try {
+            // The framebuffer may have been replaced while we waited
+            fb = m_rfbClient.getFramebuffer();
+            RfbDamageRegion region = m_rfbClient.getDamageRegion();
+            if (m_front == null || m_front.getWidth() != fb.width || m_front.getHeight() != fb.height) {
+                m_front = Bitmap.createBitmap(fb.width, fb.height, Bitmap.Config.ARGB_8888);
+                m_back = Bitmap.createBitmap(fb.width, fb.height, Bitmap.Config.ARGB_8888);
+                region.take();
+                region.add(0, 0, fb.width, fb.height);
+                m_previousDamage = new int [] { 0, 0, fb.width, fb.height };
+            }
+            damage = region.take();
+            if (damage.length == 0) {
+                return;
+            }
+            RfbDamageRegion copy = new RfbDamageRegion();
+            copy.addAll(m_previousDamage);
+            copy.addAll(damage);
+            int [] rects = copy.take();
+            for (int o = 0; o < rects.length; o += 4) {
+                // A misbehaving server could send rectangles off the edge
+                int left = Math.max(0, rects[o]);
+                int top = Math.max(0, rects[o + 1]);
+                int right = Math.min(fb.width, rects[o] + rects[o + 2]);
+                int bottom = Math.min(fb.height, rects[o + 1] + rects[o + 3]);
+                if (left < right && top < bottom) {
+                    m_back.setPixels(fb.pixels, top * fb.width + left, fb.width,
+                            left, top, right - left, bottom - top);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Bitmap shown = m_back;
+        m_back = m_front;
+        m_front = shown;
+        m_previousDamage = damage;
+        invalidateDamage(damage);
+    }
+
+    /**
+     * Invalidates the view's area covering the given framebuffer rectangles
+     */
+    private void invalidateDamage(int [] damage) {
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = 0;
+        int bottom = 0;
+        for (int o = 0; o < damage.length; o += 4) {
+            left = Math.min(left, damage[o]);
+            top = Math.min(top, damage[o + 1]);
+            right = Math.max(right, damage[o] + damage[o + 2]);
+            bottom = Math.max(bottom, damage[o + 1] + damage[o + 3]);
+        }
+        updateDstRect();
+        float scale = (float) m_dstRect.width() / m_front.getWidth();
+        // Round outwards, the filtered edges spill a pixel either way
+        invalidate(m_dstRect.left + (int) (left * scale) - 1,
+                   m_dstRect.top + (int) (top * scale) - 1,
+                   m_dstRect.left + (int) Math.ceil(right * scale) + 1,
+                   m_dstRect.top + (int) Math.ceil(bottom * scale) + 1);
+    }
+
+    /**
+     * Works out where the bitmap goes to fill the view without distorting it
+     */
+    private void updateDstRect() {
+        int fbWidth = m_front.getWidth();
+        int fbHeight = m_front.getHeight();
+        float scale = Math.min((float) getWidth() / fbWidth, (float) getHeight() / fbHeight);
+        int width = (int) (fbWidth * scale);
+        int height = (int) (fbHeight * scale);
+        int left = (getWidth() - width) / 2;
+        int top = (getHeight() - height) / 2;
+        m_srcRect.set(0, 0, fbWidth, fbHeight);
+        m_dstRect.set(left, top, left + width, top + height);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (m_front == null) {
+            return;
+        }
+        updateDstRect();
+        canvas.drawBitmap(m_front, m_srcRect, m_dstRect, m_paint);
+    }
+
+}
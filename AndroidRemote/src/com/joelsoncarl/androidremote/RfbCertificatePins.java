@@ -0,0 +1,38 @@
+package com.joelsoncarl.androidremote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Keeps the TLS certificate pinned for each server (by IP Address and
+ * Port Number) in the app's shared preferences, so a changed certificate
+ * is caught even after the app restarts.  See RfbTls.
+ */
+public class RfbCertificatePins implements RfbTls.PinStore {
+
+    /** Shared preferences file holding the pins */
+    private static final String PREFS_NAME = "tls_pins";
+
+    private Context m_context;
+
+    RfbCertificatePins(Context context) {
+        m_context = context;
+    }
+
+    private SharedPreferences prefs() {
+        return m_context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public String getPin(String server) {
+        return prefs().getString(server, null);
+    }
+
+    public void setPin(String server, String fingerprint) {
+        prefs().edit().putString(server, fingerprint).commit();
+    }
+
+    public void removePin(String server) {
+        prefs().edit().remove(server).commit();
+    }
+
+}
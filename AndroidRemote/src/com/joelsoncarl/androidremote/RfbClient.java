@@ -3,77 +3,110 @@ package com.joelsoncarl.androidremote;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import android.media.AudioManager;
+import android.media.ToneGenerator;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import com.joelsoncarl.androidremote.RfbEventBus.State;
+
 /**
  * This handles the RFB Protocol.  The reference document used
  * during implementation was at http://www.realvnc.com/docs/rfbproto.pdf
+ *
+ * Background tasks and threads report what happens through an
+ * RfbEventBus (see getEvents()) rather than touching views; the views
+ * on the Connect tab are updated by a listener on the UI thread.
  */
 public class RfbClient {
 
     /** The TextView used for displaying messages. */
     public TextView m_connectMsg;
+    /** The TextView used for displaying the encoding choice */
+    public TextView m_encodingMsg;
+    /** The TextView on the Macros tab for macro errors */
+    public TextView m_macroMsg;
     /** A reference to main activity from whence we came */
     public MainActivity m_mainActivity;
 
-    /** Available states and a variable to hold the current state */
-    private enum State {
-        DISCONNECTED, CONNECTED, CONNECTING
-    }
-    private State m_state;
+    /** The current state, also read by the receiving thread */
+    private volatile State m_state;
+    /** Where connection events are posted */
+    private RfbEventBus m_events;
+    /** Runs work handed back to the UI thread */
+    private Handler m_uiHandler;
+    /** Sounds the Bell, created when first needed and released on disconnect */
+    private ToneGenerator m_bellTone;
     /** Socket connection to the RFB Server */
     /** The IP Address and Port Number of the RFB Server */
     private String m_ip, m_port;
+    /** The password for the server, and whether to insist on encryption */
+    private String m_password;
+    private boolean m_encryptedOnly;
+    /** TLS certificates pinned for each server */
+    private RfbCertificatePins m_certificatePins;
     private Socket m_rfbServerSock;
     /** Input Stream for reading data from the RFB Server */
     private DataInputStream m_rfbInput;
     /** Output Stream for sending data to the RFB Server */
     private DataOutputStream m_rfbOutput;
-    /** Holds data to send or data read from the server */
-    private byte [] m_data;
-    /** Boolean indicator of read/send success */
-    private boolean m_dataResult;
-    /** Holds the length of strings returned from the server */
-    private int m_reasonLength;
-    /** Holds the length of the name of the server machine */
-    private int m_nameLength;
     /** Record the button states */
     private boolean m_leftButtonDown, m_rightButtonDown;
     
     /** Hold the frame buffer information */
     private int m_fbWidth, m_fbHeight;
+    /** Set once the ServerInit message has been read */
+    private boolean m_initialized;
+    /** Macros compiled for this connection, by definition */
+    private Map<String, RfbMacro> m_compiledMacros;
+    /** Runs macros one after another, apart from the other input tasks */
+    private Executor m_macroExecutor;
+    /** Collects trackpad input into PointerEvents, once connected */
+    private RfbPointerBatcher m_pointer;
+    /** Chooses the encodings to ask the server for */
+    private RfbEncodingSelector m_encodingSelector;
+    /** The remote screen, replaced when the server changes size */
+    private volatile RfbFramebuffer m_framebuffer;
+    /** Held while the framebuffer is decoded into or copied out of */
+    private Lock m_framebufferLock;
+    /** What has changed on screen since the view last drew it */
+    private RfbDamageRegion m_damage;
+    /** The view showing the screen while it is on display, or null */
+    private volatile RemoteScreenView m_screenView;
 
-    /** Holds the RFB Protocol Version */
-    private short m_protocolVersion;
-    /** Holds the RFB Security Type */
-    private int m_securityType;
-    /** Holds the number of security types */
-    private short m_numberSecurityTypes;
-
-    /** Security Type Constants */
-    private static final int SECURITY_TYPE_INVALID = 0;
-    private static final int SECURITY_TYPE_NONE = 1;
-    private static final int SECURITY_TYPE_VNC_AUTHENTICATION = 2;
-
-    /** Security Result Constants */
-    private static final int SECURITY_RESULT_SUCCESSFUL = 0;
-    private static final int SECURITY_RESULT_FAILED = 1;
-    
     /** PointerEvent Constants */
-    private static final byte POINTER_EVENT_TYPE = 0x05;
     public static final int LEFT_BUTTON = 0;
     public static final int RIGHT_BUTTON = 1;
     public static final byte BUTTON_DOWN = (byte) 0xFF;
     public static final byte BUTTON_UP = 0x00;
-    private static final byte LEFT_BUTTON_MASK = 0x01;
-    private static final byte RIGHT_BUTTON_MASK = 0x04;
+
+    /** How often the receiving thread posts metrics */
+    private static final long METRICS_INTERVAL_MS = 1000;
+    /** Bell tone volume (percent) and length */
+    private static final int BELL_VOLUME = 50;
+    private static final int BELL_DURATION_MS = 150;
 
     /**
      * Constructor for RfbClient
@@ -83,15 +116,88 @@ public class RfbClient {
         m_mainActivity = ma;
         m_connectMsg = (TextView) m_mainActivity.findViewById(R.id.connection_message);
         m_state = State.DISCONNECTED;
+        m_events = new RfbEventBus();
+        m_bellTone = null;
+        m_uiHandler = new Handler(Looper.getMainLooper());
+        m_events.subscribe(new UiEventListener(), new Executor() {
+            public void execute(Runnable delivery) {
+                m_uiHandler.post(delivery);
+            }
+        });
         m_rfbServerSock = null;
         m_ip = null;
         m_port = null;
-        m_protocolVersion = 0;
-        m_data = new byte [64];
-        m_dataResult = false;
-        m_securityType = 0;
+        m_password = null;
+        m_encryptedOnly = true;
+        m_certificatePins = new RfbCertificatePins(ma);
         m_leftButtonDown = false;
         m_rightButtonDown = false;
+        m_initialized = false;
+        m_compiledMacros = new HashMap<String, RfbMacro>();
+        m_macroExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RfbMacroThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_pointer = null;
+        m_framebuffer = null;
+        m_framebufferLock = new ReentrantLock();
+        m_damage = new RfbDamageRegion();
+        m_screenView = null;
+    }
+
+    /**
+     * Gets the bus the connection's events are posted on
+     */
+    public RfbEventBus getEvents() {
+        return m_events;
+    }
+
+    /**
+     * Changes the state and tells the event listeners
+     * @param message - describes the change, may be null
+     */
+    private void setState(State state, String message) {
+        m_state = state;
+        m_events.postState(state, message);
+    }
+
+    /**
+     * Gets the server last entered on the Connect tab
+     * @return "ip:port", or null if none has been entered yet
+     */
+    public String getServer() {
+        if (m_ip == null) {
+            return null;
+        }
+        return m_ip + ":" + m_port;
+    }
+
+    /**
+     * Sets the view to tell when the screen changes; null while nothing
+     * is showing it
+     */
+    public void setScreenView(RemoteScreenView view) {
+        m_screenView = view;
+    }
+
+    /**
+     * Gets the remote screen, or null before the first connection.  Hold
+     * getFramebufferLock() while reading its pixels.
+     */
+    public RfbFramebuffer getFramebuffer() {
+        return m_framebuffer;
+    }
+
+    public Lock getFramebufferLock() {
+        return m_framebufferLock;
+    }
+
+    /** Gets the areas of the screen changed since they were last taken */
+    public RfbDamageRegion getDamageRegion() {
+        return m_damage;
     }
 
     /**
@@ -100,7 +206,7 @@ public class RfbClient {
     public void openConnection() {
         // If currently disconnected, initiate connecting
         if (m_state == State.DISCONNECTED) {
-            m_state = State.CONNECTING;
+            setState(State.CONNECTING, null);
             String ip, port;
             EditText view = (EditText) m_mainActivity.findViewById(R.id.IP_address_entry);
             ip = view.getText().toString();
@@ -109,15 +215,44 @@ public class RfbClient {
             if (parseIpAndPort(ip, port)) {
                 m_ip = ip;
                 m_port = port;
+                m_password = ((EditText) m_mainActivity.findViewById(R.id.password_entry)).getText().toString();
+                m_encryptedOnly = ((CheckBox) m_mainActivity.findViewById(R.id.encrypted_only)).isChecked();
                 new RfbConnectTask().execute();
             }
             else {
-                m_connectMsg.setText(m_mainActivity.getResources().getString(R.string.ip_port_parse_error));
-                m_state = State.DISCONNECTED;
+                setState(State.DISCONNECTED, null);
+                m_events.postError(m_mainActivity.getResources().getString(R.string.ip_port_parse_error));
             }
         }
     }
     
+    /**
+     * Forgets the TLS certificate pinned for the server entered on the
+     * Connect tab, so that the next one it presents is trusted
+     */
+    public void forgetCertificate() {
+        String ip = ((EditText) m_mainActivity.findViewById(R.id.IP_address_entry)).getText().toString();
+        String port = ((EditText) m_mainActivity.findViewById(R.id.port_number_entry)).getText().toString();
+        String server = null;
+        if (parseIpAndPort(ip, port)) {
+            try {
+                // Pins are kept under the address as the socket reports it;
+                // a literal IP Address needs no lookup
+                server = RfbTls.serverKey(InetAddress.getByName(ip.trim()).getHostAddress(), Integer.parseInt(port.trim()));
+            } catch (UnknownHostException e) {
+                server = null;
+            } catch (NumberFormatException e) {
+                server = null;
+            }
+        }
+        if (server == null) {
+            m_events.postError(m_mainActivity.getResources().getString(R.string.ip_port_parse_error));
+            return;
+        }
+        m_certificatePins.removePin(server);
+        m_events.postProgress(m_mainActivity.getResources().getString(R.string.certificate_forgotten, server));
+    }
+
     /**
      * Parses the provided IP Address and Port Number and returns
      * true if they are ok, false otherwise
@@ -147,22 +282,52 @@ public class RfbClient {
      * Closes the input/output streams and the socket
      */
     public void closeConnection() {
-        if (m_state == State.CONNECTED) { 
-            try {
-                if (m_rfbInput != null) {
-                    m_rfbInput.close();
-                }
-                if (m_rfbOutput != null) {
-                    m_rfbOutput.close();
-                }
-                if (m_rfbServerSock != null) {
-                    m_rfbServerSock.close();
-                }
-                m_connectMsg.setText(m_mainActivity.getResources().getString(R.string.disconnected));
-            } catch (IOException e) {
-                m_connectMsg.setText("Error closing connection");
+        if (m_state == State.CONNECTED || m_state == State.READY) {
+            dropConnection(m_mainActivity.getResources().getString(R.string.disconnected));
+        }
+    }
+
+    /**
+     * Closes the streams and the socket and goes back to DISCONNECTED,
+     * whether the user asked to or the connection failed.  Call on the
+     * UI thread.
+     * @param message - why the connection ended, posted as the reason
+     *        for the state change
+     */
+    private void dropConnection(String message) {
+        // Before closing, so the receiving thread knows not to report
+        // the failed read that follows
+        setState(State.DISCONNECTED, message);
+        m_initialized = false;
+        if (m_bellTone != null) {
+            m_bellTone.release();
+            m_bellTone = null;
+        }
+        try {
+            if (m_rfbInput != null) {
+                m_rfbInput.close();
+            }
+            if (m_rfbOutput != null) {
+                m_rfbOutput.close();
             }
-            m_state = State.DISCONNECTED;
+            if (m_rfbServerSock != null) {
+                m_rfbServerSock.close();
+            }
+        } catch (IOException e) {
+            m_events.postError("Error closing connection");
+        }
+    }
+
+    /**
+     * Called on the UI thread when the receiving thread of a connection
+     * stops because a read failed
+     * @param sock - the socket of the connection that failed
+     * @param message - why it failed
+     */
+    private void connectionLost(Socket sock, String message) {
+        // Ignore a connection that has already been closed or replaced
+        if (sock == m_rfbServerSock && m_state == State.READY) {
+            dropConnection(message);
         }
     }
     
@@ -174,34 +339,25 @@ public class RfbClient {
         m_rfbServerSock = sock;
         // If socket is not null, we're connected, so open I/O streams
         if (m_rfbServerSock != null) {
-            m_state = State.CONNECTED;
-            m_connectMsg.setText(m_mainActivity.getResources().getString(R.string.connected));
-            try {
-                m_rfbInput = new DataInputStream(m_rfbServerSock.getInputStream());
-                m_rfbOutput = new DataOutputStream(m_rfbServerSock.getOutputStream());
-                new RfbHandshakeTask().execute(0, 12);
-            }
-            catch (IOException e) {
-                m_connectMsg.setText("Error in input or output stream");
-                closeConnection();
-            }
+            setState(State.CONNECTED, m_mainActivity.getResources().getString(R.string.connected));
+            new RfbHandshakeTask().execute();
         }
         // If socket is null, there was a connection error; we are still disconnected
         else {
-            m_connectMsg.setText("RFB Socket Connection Error");
-            m_state = State.DISCONNECTED;
+            setState(State.DISCONNECTED, null);
+            m_events.postError("RFB Socket Connection Error");
         }
     }
 
     /**
      * Establishes the socket connection to the RFB Server
      */
-    private class RfbConnectTask extends AsyncTask<Void, String, Socket> {
+    private class RfbConnectTask extends AsyncTask<Void, Void, Socket> {
         protected Socket doInBackground(Void... voids) {
             Socket rfbServerSock = null;
             // Try connecting the socket
             try {
-                publishProgress(m_mainActivity.getResources().getString(R.string.connection_progress));
+                m_events.postProgress(m_mainActivity.getResources().getString(R.string.connection_progress));
                 rfbServerSock = new Socket();
                 rfbServerSock.connect(new InetSocketAddress(m_ip, Integer.valueOf(m_port)), 5000);
             }
@@ -217,10 +373,6 @@ public class RfbClient {
             return rfbServerSock;
         }
 
-        protected void onProgressUpdate(String... progress) {
-            m_connectMsg.setText(progress[0]);
-        }
-
         protected void onPostExecute(Socket sock) {
             connectDone(sock);
         }
@@ -234,490 +386,436 @@ public class RfbClient {
      * @param y - y-coordinate
      */
     public void mouseEvent(int button, boolean buttonDown, int x, int y) {
-        // Set the message type
-        m_data[0] = POINTER_EVENT_TYPE;
-        // Setup the button mask
-        byte buttonMask = 0x00;
-        // Set button mask to keep the left and right in
-        // their previous state
-        if (m_leftButtonDown) {
-            buttonMask = (byte) (0xFF & (buttonMask | LEFT_BUTTON_MASK));
-        }
-        if (m_rightButtonDown) {
-            buttonMask = (byte) (0xFF & (buttonMask | RIGHT_BUTTON_MASK));
+        if (!m_initialized) {
+            return;
         }
+        // Setup the button mask to keep the left and right in
+        // their previous state
+        int buttonMask = getButtonMask();
         // If we are pushing a button down, set the corresponding bit
         if (buttonDown) {
             if (button == LEFT_BUTTON) {
-                buttonMask = (byte) (0xFF & (buttonMask | LEFT_BUTTON_MASK));
+                buttonMask |= RfbProtocol.LEFT_BUTTON_MASK;
                 m_leftButtonDown = true;
             }
             else {
-                buttonMask = (byte) (0xFF & (buttonMask | RIGHT_BUTTON_MASK));
+                buttonMask |= RfbProtocol.RIGHT_BUTTON_MASK;
                 m_rightButtonDown = true;
             }
         }
         // Otherwise clear the bit to indicate it going up
         else {
             if (button == LEFT_BUTTON) {
-                buttonMask = (byte) (0xFF & (buttonMask & ~LEFT_BUTTON_MASK));
+                buttonMask &= ~RfbProtocol.LEFT_BUTTON_MASK;
                 m_leftButtonDown = false;
             }
             else {
-                buttonMask = (byte) (0xFF & (buttonMask & ~RIGHT_BUTTON_MASK));
+                buttonMask &= ~RfbProtocol.RIGHT_BUTTON_MASK;
                 m_rightButtonDown = false;
             }
         }
-        m_data[1] = buttonMask;
-        m_data[2] = (byte) ((0xFF00 & x) >> 8);
-        m_data[3] = (byte) (0xFF & x);
-        m_data[4] = (byte) ((0xFF00 & y) >> 8);
-        m_data[5] = (byte) (0xFF & y);
-        new RfbPointerEventTask().execute(0, 6);
+        // Each task gets its own bytes, as another event may be queued before it runs
+        byte [] event = new byte [RfbProtocol.POINTER_EVENT_LENGTH];
+        RfbProtocol.encodePointerEvent(event, 0, buttonMask, x, y);
+        new RfbSendDataTask("Pointer Event").execute(event);
     }
 
     /**
-     * Generic AsyncTask for reading data from the RFB Server
-     * 
-     * Argument to execute() should be an Integer array with
-     * the first element being the offset of where to start
-     * storing data in the byte array, and the second element
-     * being the number of bytes to read.
+     * Called on the UI thread when the server changes the screen size
+     * (DesktopSize).  Macros were compiled and the pointer clamped for
+     * the old size, so both start again.
      */
-    private class RfbReadDataTask extends AsyncTask<Integer, Void, Boolean> {
-        protected Boolean doInBackground(Integer... ints) {
-            try {
-                m_rfbInput.readFully(m_data, ints[0], ints[1]);
-            } catch (IOException e) {
-                m_connectMsg.setText("Error: RfbReadDataTask()");
-                return false;
-            }
-            return true;
+    private void framebufferResized(int width, int height) {
+        if (!m_initialized || (width == m_fbWidth && height == m_fbHeight)) {
+            return;
         }
+        m_fbWidth = width;
+        m_fbHeight = height;
+        m_compiledMacros.clear();
+        m_pointer = new RfbPointerBatcher(m_fbWidth, m_fbHeight);
+    }
 
-        protected void onPostExecute(Boolean result) {
-            m_dataResult = result;
-        }
+    /**
+     * Gets the trackpad pointer of the current connection
+     * @return the pointer, or null if not connected
+     */
+    public RfbPointerBatcher getPointer() {
+        return m_initialized ? m_pointer : null;
     }
 
     /**
-     * Generic AsyncTask for sending data to the RFB Server
-     * 
-     * Argument to execute() should be an Integer array with
-     * the first element being the offset of where to start
-     * reading data in the byte array, and the second element
-     * being the number of bytes to send.
+     * Gets the left and right buttons held down, as PointerEvent mask bits
      */
-    private class RfbSendDataTask extends AsyncTask<Integer, Void, Boolean> {
-        protected Boolean doInBackground(Integer... ints) {
-            try {
-                m_rfbOutput.write(m_data, ints[0], ints[1]);
-            } catch (IOException e) {
-                m_connectMsg.setText("Error: RfbSendDataTask()");
-                return false;
-            }
-            return true;
+    public int getButtonMask() {
+        int buttonMask = 0x00;
+        if (m_leftButtonDown) {
+            buttonMask |= RfbProtocol.LEFT_BUTTON_MASK;
         }
-
-        protected void onPostExecute(Boolean result) {
-            m_dataResult = result;
+        if (m_rightButtonDown) {
+            buttonMask |= RfbProtocol.RIGHT_BUTTON_MASK;
         }
+        return buttonMask;
     }
-    
+
     /**
-     * Sends the PointerEvent to the RFB Server
+     * Calls a task to send a batch of PointerEvents in one write
+     * @param events - the encoded PointerEvents
+     * @param length - number of bytes to send
      */
-    private class RfbPointerEventTask extends RfbSendDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (!m_dataResult) {
-                m_connectMsg.setText("Error Sending RFB Pointer Event");
-            }
+    public void pointerEvents(byte [] events, int length) {
+        if (m_initialized) {
+            new RfbSendDataTask("Pointer Event").execute(Arrays.copyOf(events, length));
         }
     }
 
     /**
-     * This handles reading the initial handshake message from
-     * the RFB server ("RFB 003.00x\n" where 'x' is 3, 7, or 8).
-     * Grabs the 'x' to record the protocol version.
+     * Calls a task to run a macro, compiling it first if this connection
+     * hasn't seen it before.  Errors are shown on the Macros tab.
+     * @param definition - the macro's commands, see RfbMacro
      */
-    private class RfbHandshakeTask extends RfbReadDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                //Uncomment line below to force test protocol 3.3
-                //(assumes we were getting 3.8)
-                //m_data[10] = (byte) (m_data[10] - 5);
-                m_protocolVersion = (short)((0xFF & ((int) m_data[10])) - 0x30);
-                m_connectMsg.setText("Protocol Version: " + Short.toString(m_protocolVersion));
-                new RfbHandshakeResponseTask().execute(0, 12);
-            }
-            else {
-                m_connectMsg.setText("Error Receiving RFB Handshake");
+    public void runMacro(String definition) {
+        if (!m_initialized) {
+            showMacroMessage(m_mainActivity.getResources().getString(R.string.macro_not_connected));
+            return;
+        }
+        RfbMacro macro = m_compiledMacros.get(definition);
+        if (macro == null) {
+            try {
+                macro = RfbMacro.compile(definition, m_fbWidth, m_fbHeight);
+            } catch (IllegalArgumentException e) {
+                showMacroMessage(e.getMessage());
+                return;
             }
+            m_compiledMacros.put(definition, macro);
         }
+        showMacroMessage("");
+        new RfbMacroTask().executeOnExecutor(m_macroExecutor, macro);
     }
 
     /**
-     * Responds by echoing back the handshake information (protocol allows
-     * selecting a lower version, but we will just use the highest provided
-     * by the server)
+     * Generic AsyncTask for sending data to the RFB Server
+     * 
+     * Argument to execute() should be the bytes to send, which
+     * the task then owns.
      */
-    private class RfbHandshakeResponseTask extends RfbSendDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                // Version 3.7 onwards - The server sends a single
-                // byte with the number of security types supported,
-                // so we need to grab that single byte first
-                if (m_protocolVersion >= 7) {
-                    new RfbSecurityTask().execute(0, 1);
-                }
-                // Version 3.3 - The server decides the security type
-                // and sends a single 4 byte word.
-                else {
-                    new RfbSecurityTask().execute(0, 4);
+    private class RfbSendDataTask extends AsyncTask<byte [], Void, Boolean> {
+        /** What is being sent, for the error message */
+        private String m_what;
+
+        RfbSendDataTask(String what) {
+            m_what = what;
+        }
+
+        protected Boolean doInBackground(byte []... data) {
+            try {
+                // The receiving thread also sends on this stream
+                synchronized (m_rfbOutput) {
+                    m_rfbOutput.write(data[0]);
                 }
+            } catch (IOException e) {
+                m_events.postError("Error Sending RFB " + m_what);
+                return false;
             }
-            else {
-                m_connectMsg.setText("Error Sending RFB Handshake Response");
-            }
+            return true;
         }
     }
 
     /**
-     * Reads the number of security types (3.7+) or the server-dictated
-     * security type (3.3)
+     * Sends a compiled macro to the RFB Server.  Macros sleep through
+     * their waits, so they run on an executor of their own rather than
+     * holding up the other tasks; each segment is written under the
+     * stream's lock, so other input can go between segments.
      */
-    private class RfbSecurityTask extends RfbReadDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                // Version 3.7+
-                if (m_protocolVersion >= 7) {
-                    m_numberSecurityTypes = (short) (0xFF & ((int) m_data[0]));
-                    m_connectMsg.setText("numberSecurityTypes = " + Short.toString(m_numberSecurityTypes));
-                    // A number of security types value of 0 means failure,
-                    // and the server will be sending us a reason string
-                    if (m_numberSecurityTypes == 0) {
-                        new RfbFailureReasonLengthTask().execute(0, 4);
-                    }
-                    // We need to read the array of bytes to get the list
-                    // of security types supported
-                    else {
-                        new RfbSecurityTypesTask().execute(0, (int) m_numberSecurityTypes);
-                    }
-                }
-                // Version 3.3
-                else {
-                    // Combine the four bytes into a single int representing
-                    // the security type chosen by the server
-                    short securityTypeByte3 = (short) (0xFF & ((int) m_data[0]));
-                    short securityTypeByte2 = (short) (0xFF & ((int) m_data[1]));
-                    short securityTypeByte1 = (short) (0xFF & ((int) m_data[2]));
-                    short securityTypeByte0 = (short) (0xFF & ((int) m_data[3]));
-                    int securityType;
-                    securityType = (securityTypeByte3 << 24)
-                                 | (securityTypeByte2 << 16)
-                                 | (securityTypeByte1 << 8)
-                                 | (securityTypeByte0);
-                    m_connectMsg.setText("securityType = " + Integer.toString(securityType));
-                    // A type of 0 indicates failure, and the server will
-                    // be sending a reason string
-                    if (securityType == SECURITY_TYPE_INVALID) {
-                        new RfbFailureReasonLengthTask().execute(0, 4);
-                    }
-                    else {
-                        m_securityType = securityType;
-                        // TODO: Continue 3.3 Rfb Security Process
-                        new RfbSecurityTypesTask().execute(0, 0);
-                    }
-                }
+    private class RfbMacroTask extends AsyncTask<RfbMacro, Void, Boolean> {
+        protected Boolean doInBackground(RfbMacro... macros) {
+            try {
+                macros[0].run(m_rfbOutput);
+            } catch (IOException e) {
+                return false;
+            } catch (InterruptedException e) {
+                return true;
             }
-            else {
-                m_connectMsg.setText("Error Receiving Security Information");
+            return true;
+        }
+
+        protected void onPostExecute(Boolean sent) {
+            if (!sent) {
+                showMacroMessage("Error Sending RFB Macro");
             }
         }
     }
 
-    /**
-     * Version 3.7+ - Read the security types available
-     * Version 3.3 - Nothing to do; go on to next task
-     */
-    private class RfbSecurityTypesTask extends RfbReadDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                // Version 3.7 onwards - The server lists the security
-                // types supported
-                if (m_protocolVersion >= 7) {
-                    boolean secTypeInvalid = false;
-                    boolean secTypeNone = false;
-                    boolean secTypeVNCAuthentication = false;
-                    // Mark the found security types valid
-                    for (int i = 0; i < m_numberSecurityTypes; i++) {						
-                        switch ((int) m_data[i]) {
-                        case SECURITY_TYPE_INVALID:
-                            // Invalid value (shouldn't be reached... I think)
-                            secTypeInvalid = true;
-                            break;
-                        case SECURITY_TYPE_NONE:
-                            // No security type
-                            secTypeNone = true;
-                            break;
-                        case SECURITY_TYPE_VNC_AUTHENTICATION:
-                            // VNC Authentication
-                            secTypeVNCAuthentication = true;
-                            break;
-                        default:
-                            // Shouldn't reach here
-                            break;
-                        }
-                    }
-                    // Choose one of the found security types (pre-defined choice order)
-                    if (secTypeVNCAuthentication) {
-                        m_securityType = SECURITY_TYPE_VNC_AUTHENTICATION;
-                        m_data[0] = (byte) (0xFF & m_securityType);
-                        new RfbSendSecurityChoiceTask().execute(0, 1);
-                    }
-                    else if (secTypeNone) {
-                        m_securityType = SECURITY_TYPE_NONE;
-                        m_data[0] = (byte) (0xFF & m_securityType);
-                        new RfbSendSecurityChoiceTask().execute(0, 1);
-                    }
-                    else if (secTypeInvalid) {
-                        // Invalid
-                        m_connectMsg.setText("Server reported Invalid security type option");
-                    }
-                    else {
-                        // Error, no security choice available
-                        m_connectMsg.setText("Error: No security options supported");
-                    }
-                }
-                // Version 3.3 - We were already given the security type from the server
-                else {
-                    new RfbSendSecurityChoiceTask().execute(0, 0);
-                }
-            }
-            else {
-                m_connectMsg.setText("Error Receiving Security Information (part 2)");
-            }
+    private void showMacroMessage(String message) {
+        if (m_macroMsg != null) {
+            m_macroMsg.setText(message);
         }
     }
 
     /**
-     * Version 3.7+ - Sends the chosen security type to the server, then proceed based
-     *                on the security type
-     * Version 3.3 - Proceed based on the security type
+     * Runs the handshaking and initialization phases (see RfbHandshake),
+     * passing its progress messages on to the event bus,
+     * then asks for the first FramebufferUpdate.  The connection is
+     * complete after this, and the receiving thread takes over.
+     *
+     * The user may disconnect, or disconnect and connect again, while it
+     * runs, so it works on its own copies of the socket and settings and
+     * only hands the connection over if it is still the current one.
      */
-    private class RfbSendSecurityChoiceTask extends RfbSendDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                // No Authentication, No Encryption
-                if (m_securityType == SECURITY_TYPE_NONE) {
-                    // The protocol continues with the SecurityResult message
-                    if (m_protocolVersion >= 8) {
-                        new RfbSecurityResultTask().execute(0, 4);
-                    }
-                    // The protocol passes to the initialization phase
-                    else {
-                        new RfbInitializationTask().execute(0, 0);
-                    }
-                }
-                else if (m_securityType == SECURITY_TYPE_VNC_AUTHENTICATION) {
-                    // TODO: Implement
-                    /*
-					VNC authentication is to be used and protocol data is to be sent unencrypted.
-					The	server sends a random 16-byte challenge:
-					No. of bytes Type [Value] Description
-					16           U8           challenge
-					The client encrypts the challenge with DES, using a password supplied by the
-					user as the key, and sends the resulting 16-byte response:
-					No. of bytes Type [Value] Description
-					16           U8           response
-					The protocol continues with the SecurityResult message.
-                     */
-                }
-            }
-            else {
-                m_connectMsg.setText("Error Sending RFB Security Choice");
+    private class RfbHandshakeTask extends AsyncTask<Void, Void, RfbHandshake.ServerInit>
+            implements RfbHandshake.Listener {
+        /** The socket the task was started for */
+        private Socket m_connectSock;
+        private String m_taskPassword;
+        private boolean m_taskEncryptedOnly;
+        /** The connection once the handshake is done, over TLS if it was started */
+        private Socket m_sock;
+        private DataInputStream m_input;
+        private DataOutputStream m_output;
+        private RfbEncodingSelector m_selector;
+        private String m_error;
+        private String m_security;
+
+        RfbHandshakeTask() {
+            m_connectSock = m_rfbServerSock;
+            m_sock = m_connectSock;
+            m_taskPassword = m_password;
+            m_taskEncryptedOnly = m_encryptedOnly;
+        }
+
+        protected RfbHandshake.ServerInit doInBackground(Void... voids) {
+            try {
+                RfbHandshake handshake = new RfbHandshake(m_connectSock, this);
+                handshake.setPassword(m_taskPassword);
+                handshake.setAllowPlaintext(!m_taskEncryptedOnly);
+                handshake.setPinStore(m_certificatePins);
+                RfbHandshake.ServerInit serverInit = handshake.run(false);
+                m_security = (handshake.isEncrypted() ? "Encrypted. " : "Not encrypted. ") + handshake.describeTimings();
+                // After TLS everything goes over the TLS socket
+                m_sock = handshake.getSocket();
+                m_input = handshake.getInput();
+                m_output = handshake.getOutput();
+
+                m_selector = new RfbEncodingSelector(System.currentTimeMillis());
+                byte [] setup = new byte [RfbProtocol.SET_PIXEL_FORMAT_LENGTH + RfbProtocol.FRAMEBUFFER_UPDATE_REQUEST_LENGTH];
+                int length = RfbProtocol.encodeSetPixelFormat(setup, 0);
+                m_output.write(setup, 0, length);
+                m_output.write(RfbProtocol.encodeSetEncodings(m_selector.getEncodings()));
+                length = RfbProtocol.encodeFramebufferUpdateRequest(setup, 0, false,
+                        0, 0, serverInit.fbWidth, serverInit.fbHeight);
+                m_output.write(setup, 0, length);
+                return serverInit;
+            } catch (RfbTls.CertificateChangedException e) {
+                m_error = m_mainActivity.getResources().getString(R.string.certificate_changed, e.server, e.fingerprint);
+                return null;
+            } catch (IOException e) {
+                m_error = e.getMessage();
+                return null;
             }
         }
-    }
 
-    /**
-     * Reads the security result from the server
-     */
-    private class RfbSecurityResultTask extends RfbReadDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                short securityResultByte3 = (short) (0xFF & ((int) m_data[0]));
-                short securityResultByte2 = (short) (0xFF & ((int) m_data[1]));
-                short securityResultByte1 = (short) (0xFF & ((int) m_data[2]));
-                short securityResultByte0 = (short) (0xFF & ((int) m_data[3]));
-                int securityResult;
-                securityResult = (securityResultByte3 << 24) 
-                               | (securityResultByte2 << 16)
-                               | (securityResultByte1 << 8)
-                               | (securityResultByte0);
-                m_connectMsg.setText("securityResult = " + Integer.toString(securityResult));
-                if (securityResult == SECURITY_RESULT_SUCCESSFUL) {
-                    // If successful, the protocol passes to the initialization phase
-                    new RfbInitializationTask().execute(0, 0);
-                }
-                else if (securityResult == SECURITY_RESULT_FAILED) {
-                    if (m_protocolVersion >= 8) {
-                        // The server sends a string describing the reason for
-                        // the failure, then closes the connection
-                        new RfbFailureReasonLengthTask().execute(0, 4);
-                    }
-                    else {
-                        // The server closes the connection
-                    }
-                }
-                else {
-                    m_connectMsg.setText("Error... Security Result = " + Integer.toString(securityResult));
+        public void onProgress(String message) {
+            m_events.postProgress(message);
+        }
+
+        protected void onPostExecute(RfbHandshake.ServerInit serverInit) {
+            // Disconnected (and perhaps connected again) meanwhile
+            if (m_connectSock != m_rfbServerSock || m_state != State.CONNECTED) {
+                try {
+                    m_sock.close();
+                } catch (IOException e) {
+                    // Do nothing
                 }
+                return;
+            }
+            if (serverInit != null) {
+                m_rfbServerSock = m_sock;
+                m_rfbInput = m_input;
+                m_rfbOutput = m_output;
+                m_encodingSelector = m_selector;
+                m_fbWidth = serverInit.fbWidth;
+                m_fbHeight = serverInit.fbHeight;
+                m_initialized = true;
+                m_compiledMacros.clear();
+                m_pointer = new RfbPointerBatcher(m_fbWidth, m_fbHeight);
+                setState(State.READY, "Connected to " + serverInit.name + ", " + Integer.toString(m_fbWidth) + "x" + Integer.toString(m_fbHeight) + "\n" + m_security);
+                m_events.postMetrics(new RfbEventBus.Metrics(m_encodingSelector.getStatus(), 0, 0));
+                new RfbReceiveThread(new RfbFramebuffer(m_fbWidth, m_fbHeight)).start();
             }
             else {
-                m_connectMsg.setText("Error Receiving Security Result");
+                dropConnection(m_error != null ? m_error : "Error in RFB Handshake");
             }
         }
     }
 
     /**
-     * Starts the Initialization Phase by immediately going to the ClientInit
+     * Shows connection events on the Connect tab, and sounds the Bell.
+     * Runs on the UI thread.
      */
-    private class RfbInitializationTask extends RfbSendDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                short sharedFlag = 0;
-                m_data[0] = (byte) (0xFF & sharedFlag);
-                new RfbClientInitTask().execute(0, 1);
-            }
-            else {
-                m_connectMsg.setText("Error in RFB Initialization Task");
+    private class UiEventListener extends RfbEventBus.Adapter {
+        public void onStateChanged(State state, String message) {
+            if (message != null) {
+                showConnectMessage(message);
             }
         }
-    }
 
-    /**
-     * Sends the ClientInit message, then proceeds to ServerInit
-     */
-    private class RfbClientInitTask extends RfbSendDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                new RfbServerInitTask().execute(0, 24);
-            }
-            else {
-                m_connectMsg.setText("Error sending ClientInit message");
+        public void onProgress(String message) {
+            showConnectMessage(message);
+        }
+
+        public void onError(String message, int count) {
+            showConnectMessage(count > 1 ? message + " (" + Integer.toString(count) + " errors)" : message);
+        }
+
+        public void onMetrics(RfbEventBus.Metrics metrics) {
+            if (m_encodingMsg != null) {
+                m_encodingMsg.setText(metrics.encodingStatus + String.format(Locale.US, "\n%.1f updates/s, %.0f KB/s",
+                        metrics.updatesPerSecond, metrics.bytesPerSecond / 1024));
             }
         }
-    }
 
-    /**
-     * Reads the ServerInit message through the name-length, then calls
-     * the task to read the name-string
-     */
-    private class RfbServerInitTask extends RfbReadDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                // Grab the framebuffer width and height
-                short fbByte1 = (short) (0xFF & ((int) m_data[0]));
-                short fbByte0 = (short) (0xFF & ((int) m_data[1]));
-                m_fbWidth = (fbByte1 << 8)
-                          | (fbByte0);
-                fbByte1 = (short) (0xFF & ((int) m_data[2]));
-                fbByte0 = (short) (0xFF & ((int) m_data[3]));
-                m_fbHeight = (fbByte1 << 8)
-                           | (fbByte0);
-                // Grab the name length
-                short nameLengthByte3 = (short) (0xFF & ((int) m_data[20]));
-                short nameLengthByte2 = (short) (0xFF & ((int) m_data[21]));
-                short nameLengthByte1 = (short) (0xFF & ((int) m_data[22]));
-                short nameLengthByte0 = (short) (0xFF & ((int) m_data[23]));
-                int nameLength = 0;
-                nameLength = (nameLengthByte3 << 24)
-                           | (nameLengthByte2 << 16)
-                           | (nameLengthByte1 << 8)
-                           | (nameLengthByte0);
-                m_nameLength = nameLength;
-                new RfbServerInitNameTask().execute(0, nameLength);
+        public void onBell(int count) {
+            // However many arrived together, one beep will do
+            if (m_bellTone == null) {
+                try {
+                    m_bellTone = new ToneGenerator(AudioManager.STREAM_NOTIFICATION, BELL_VOLUME);
+                } catch (RuntimeException e) {
+                    // No audio available
+                    return;
+                }
             }
-            else {
-                m_connectMsg.setText("Error Receiving Server Init");
+            m_bellTone.startTone(ToneGenerator.TONE_PROP_BEEP, BELL_DURATION_MS);
+        }
+
+        private void showConnectMessage(String message) {
+            if (m_connectMsg != null) {
+                m_connectMsg.setText(message);
             }
         }
     }
-    
+
     /**
-     * Read the name of the machine of the server; connection is complete after this
+     * Reads messages from the RFB Server for as long as the connection
+     * lasts.  After each FramebufferUpdate it lets the encoding selector
+     * re-send SetEncodings if the choice changes, then asks for the next
+     * update.  This runs for the whole session, so it is a thread of its
+     * own rather than an AsyncTask.  On multi-core devices it decodes
+     * with a pool of one thread per core.
      */
-    private class RfbServerInitNameTask extends RfbReadDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                StringBuilder s = new StringBuilder();
-                for (int i = 0; i < m_nameLength; i++) {
-                    s.append((char) m_data[i]);
+    private class RfbReceiveThread extends Thread implements RfbUpdateReader.Listener {
+        /** The socket of the connection this thread reads from */
+        private Socket m_sock;
+        private RfbUpdateReader m_reader;
+        private ExecutorService m_decodePool;
+        private byte [] m_request;
+        /** Updates and bytes since metrics were last posted */
+        private long m_metricsStartMs;
+        private long m_metricsUpdates, m_metricsBytes;
+
+        RfbReceiveThread(RfbFramebuffer fb) {
+            super("RfbReceiveThread");
+            m_sock = m_rfbServerSock;
+            int cores = Runtime.getRuntime().availableProcessors();
+            if (cores > 1) {
+                m_decodePool = Executors.newFixedThreadPool(cores, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "RfbDecodeThread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            m_reader = new RfbUpdateReader(m_rfbInput, fb, this, m_decodePool);
+            m_reader.setFramebufferLock(m_framebufferLock);
+            m_request = new byte [RfbProtocol.FRAMEBUFFER_UPDATE_REQUEST_LENGTH];
+            m_metricsStartMs = System.currentTimeMillis();
+            m_metricsUpdates = 0;
+            m_metricsBytes = 0;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    m_reader.readMessage();
                 }
-                m_connectMsg.setText("Connected to " + s.toString() + ", " + Integer.toString(m_fbWidth) + "x" + Integer.toString(m_fbHeight));
-            }
-            else {
-                m_connectMsg.setText("Error Receiving Server Init Machine Name");
+            } catch (IOException e) {
+                // Closing the connection ends the read with an exception too,
+                // which isn't worth reporting
+                if (m_state == RfbEventBus.State.READY) {
+                    final String message = "Error Receiving RFB Data: " + e.getMessage();
+                    // Closing reads fields owned by the UI thread, so hand it back
+                    m_uiHandler.post(new Runnable() {
+                        public void run() {
+                            connectionLost(m_sock, message);
+                        }
+                    });
+                }
+            } finally {
+                if (m_decodePool != null) {
+                    m_decodePool.shutdown();
+                }
+                m_reader.close();
             }
         }
-    }
 
-    /**
-     * There was a failure and the server is sending a reason string.
-     * We first need to read the 4 byte word that tells how long the
-     * reason string will be.
-     */
-    private class RfbFailureReasonLengthTask extends RfbReadDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                short failureReasonLengthByte3 = (short) (0xFF & ((int) m_data[0]));
-                short failureReasonLengthByte2 = (short) (0xFF & ((int) m_data[1]));
-                short failureReasonLengthByte1 = (short) (0xFF & ((int) m_data[2]));
-                short failureReasonLengthByte0 = (short) (0xFF & ((int) m_data[3]));
-                int failureReasonLength = 0;
-                failureReasonLength = (failureReasonLengthByte3 << 24)
-                                    | (failureReasonLengthByte2 << 16)
-                                    | (failureReasonLengthByte1 << 8)
-                                    | (failureReasonLengthByte0);
-                m_reasonLength = failureReasonLength;
-                new RfbFailureReasonTask().execute(0, failureReasonLength);
+        public void onRectangleDecoded(int encoding, long pixels, long bytes, long decodeNanos) {
+            m_encodingSelector.recordRectangle(encoding, pixels, bytes, decodeNanos);
+        }
+
+        public void onFramebufferUpdate(RfbFramebuffer fb, List<RfbRectangle> damage, long bytes, long wireNanos) {
+            m_encodingSelector.recordUpdate(bytes, wireNanos);
+            // Only record what changed; the view copies it out at most once a frame
+            if (fb != m_framebuffer) {
+                m_framebuffer = fb;
+                m_damage.add(0, 0, fb.width, fb.height);
+                final int width = fb.width;
+                final int height = fb.height;
+                m_uiHandler.post(new Runnable() {
+                    public void run() {
+                        framebufferResized(width, height);
+                    }
+                });
             }
             else {
-                m_connectMsg.setText("Error Receiving Failure Reason Length");
+                for (RfbRectangle rect : damage) {
+                    m_damage.add(rect.x, rect.y, rect.width, rect.height);
+                }
             }
-        }
-    }
-
-    /**
-     * Read the actual reason string
-     */
-    private class RfbFailureReasonTask extends RfbReadDataTask {
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (m_dataResult) {
-                StringBuilder s = new StringBuilder();
-                for (int i = 0; i < m_reasonLength; i++) {
-                    s.append((char) m_data[i]);
+            RemoteScreenView view = m_screenView;
+            if (view != null) {
+                view.requestFrame();
+            }
+            long now = System.currentTimeMillis();
+            boolean encodingChanged = false;
+            try {
+                synchronized (m_rfbOutput) {
+                    if (m_encodingSelector.evaluate(now)) {
+                        m_rfbOutput.write(RfbProtocol.encodeSetEncodings(m_encodingSelector.getEncodings()));
+                        encodingChanged = true;
+                    }
+                    int length = RfbProtocol.encodeFramebufferUpdateRequest(m_request, 0, true,
+                            0, 0, fb.width, fb.height);
+                    m_rfbOutput.write(m_request, 0, length);
                 }
-                m_connectMsg.setText(s.toString());
+            } catch (IOException e) {
+                // The next read will fail too and report it
             }
-            else {
-                m_connectMsg.setText("Error Receiving Failure Reason");
+
+            m_metricsUpdates++;
+            m_metricsBytes += bytes;
+            long elapsedMs = now - m_metricsStartMs;
+            if (encodingChanged || elapsedMs >= METRICS_INTERVAL_MS) {
+                double seconds = Math.max(1, elapsedMs) / 1000.0;
+                m_events.postMetrics(new RfbEventBus.Metrics(m_encodingSelector.getStatus(),
+                        m_metricsUpdates / seconds, m_metricsBytes / seconds));
+                m_metricsStartMs = now;
+                m_metricsUpdates = 0;
+                m_metricsBytes = 0;
             }
         }
+
+        public void onBell() {
+            m_events.postBell();
+        }
     }
 
 }
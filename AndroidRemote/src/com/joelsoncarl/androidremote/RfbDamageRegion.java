@@ -0,0 +1,164 @@
+package com.joelsoncarl.androidremote;
+
+/**
+ * Collects damaged rectangles of the framebuffer between frames, merging
+ * them as they come in so a frame copies a handful of areas rather than
+ * every rectangle of every update.
+ *
+ * Each rectangle is costed as its area plus a fixed overhead for the
+ * copy and invalidate calls it causes.  Two rectangles are merged when
+ * their bounding box costs no more than the pair, which covers
+ * overlapping rectangles and ones close enough together that the gap is
+ * cheaper than a second copy.  When there are too many, the pair whose
+ * merge wastes least is merged anyway.
+ *
+ * Rectangles are added on the receiving thread and taken on the UI
+ * thread, so every method is synchronized.
+ */
+public class RfbDamageRegion {
+
+    /** What one more rectangle costs, in pixels' worth of copying */
+    private static final long RECT_OVERHEAD_PIXELS = 1024;
+    /** The most rectangles kept before they are forced together */
+    private static final int MAX_RECTS = 16;
+
+    /** Left, top, right, bottom (exclusive) of each rectangle */
+    private int [] m_rects;
+    private int m_count;
+
+    public RfbDamageRegion() {
+        m_rects = new int [4 * (MAX_RECTS + 1)];
+        m_count = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return m_count == 0;
+    }
+
+    /**
+     * Adds a damaged rectangle, merging as described above
+     */
+    public synchronized void add(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        int left = x;
+        int top = y;
+        int right = x + width;
+        int bottom = y + height;
+
+        // Keep merging the new rectangle into existing ones while that
+        // pays; each merge can make another one worthwhile
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < m_count; i++) {
+                int o = 4 * i;
+                if (mergeCost(left, top, right, bottom, m_rects[o], m_rects[o + 1], m_rects[o + 2], m_rects[o + 3]) <= 0) {
+                    left = Math.min(left, m_rects[o]);
+                    top = Math.min(top, m_rects[o + 1]);
+                    right = Math.max(right, m_rects[o + 2]);
+                    bottom = Math.max(bottom, m_rects[o + 3]);
+                    remove(i);
+                    merged = true;
+                    break;
+                }
+            }
+        }
+        int o = 4 * m_count;
+        m_rects[o] = left;
+        m_rects[o + 1] = top;
+        m_rects[o + 2] = right;
+        m_rects[o + 3] = bottom;
+        m_count++;
+
+        if (m_count > MAX_RECTS) {
+            mergeCheapestPair();
+        }
+    }
+
+    /**
+     * Takes the rectangles collected so far, leaving the region empty
+     * @return x, y, width and height of each rectangle in turn
+     */
+    public synchronized int [] take() {
+        int [] rects = new int [4 * m_count];
+        for (int i = 0; i < m_count; i++) {
+            int o = 4 * i;
+            rects[o] = m_rects[o];
+            rects[o + 1] = m_rects[o + 1];
+            rects[o + 2] = m_rects[o + 2] - m_rects[o];
+            rects[o + 3] = m_rects[o + 3] - m_rects[o + 1];
+        }
+        m_count = 0;
+        return rects;
+    }
+
+    /**
+     * Adds every rectangle from an array as returned by take()
+     */
+    public synchronized void addAll(int [] rects) {
+        for (int o = 0; o + 3 < rects.length; o += 4) {
+            add(rects[o], rects[o + 1], rects[o + 2], rects[o + 3]);
+        }
+    }
+
+    /**
+     * How much more merging two rectangles costs than keeping them apart;
+     * zero or less means merging is no worse
+     */
+    private static long mergeCost(int l1, int t1, int r1, int b1, int l2, int t2, int r2, int b2) {
+        long union = (long) (Math.max(r1, r2) - Math.min(l1, l2)) * (Math.max(b1, b2) - Math.min(t1, t2));
+        long separate = (long) (r1 - l1) * (b1 - t1) + (long) (r2 - l2) * (b2 - t2) + RECT_OVERHEAD_PIXELS;
+        // Pixels in both would be copied twice if kept apart
+        long overlapWidth = Math.min(r1, r2) - Math.max(l1, l2);
+        long overlapHeight = Math.min(b1, b2) - Math.max(t1, t2);
+        if (overlapWidth > 0 && overlapHeight > 0) {
+            separate -= overlapWidth * overlapHeight;
+        }
+        return union - separate;
+    }
+
+    private void mergeCheapestPair() {
+        int bestI = 0;
+        int bestJ = 1;
+        long bestCost = Long.MAX_VALUE;
+        for (int i = 0; i < m_count; i++) {
+            for (int j = i + 1; j < m_count; j++) {
+                int a = 4 * i;
+                int b = 4 * j;
+                long cost = mergeCost(m_rects[a], m_rects[a + 1], m_rects[a + 2], m_rects[a + 3],
+                                      m_rects[b], m_rects[b + 1], m_rects[b + 2], m_rects[b + 3]);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestI = i;
+                    bestJ = j;
+                }
+            }
+        }
+        int b = 4 * bestJ;
+        int left = m_rects[b];
+        int top = m_rects[b + 1];
+        int right = m_rects[b + 2];
+        int bottom = m_rects[b + 3];
+        remove(bestJ);
+        // Removing j (> i) leaves i where it was
+        int a = 4 * bestI;
+        left = Math.min(left, m_rects[a]);
+        top = Math.min(top, m_rects[a + 1]);
+        right = Math.max(right, m_rects[a + 2]);
+        bottom = Math.max(bottom, m_rects[a + 3]);
+        remove(bestI);
+        // Put it back through add() in case it now swallows others
+        add(left, top, right - left, bottom - top);
+    }
+
+    /** Removes a rectangle by moving the last one into its place */
+    private void remove(int i) {
+        m_count--;
+        if (i != m_count) {
+            System.arraycopy(m_rects, 4 * m_count, m_rects, 4 * i, 4);
+        }
+    }
+
+}
@@ -0,0 +1,389 @@
+package com.joelsoncarl.androidremote;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads rectangle payloads off the wire and decodes them into the
+ * framebuffer.  Everything assumes the pixel format asked for by
+ * RfbProtocol.encodeSetPixelFormat(): 4 bytes per pixel, little-endian,
+ * so blue, green, red, unused.
+ */
+public class RfbDecoder {
+
+    private static final int BYTES_PER_PIXEL = 4;
+    /** ZRLE's compact pixels drop the unused byte */
+    private static final int BYTES_PER_CPIXEL = 3;
+
+    /** Hextile subencoding mask bits */
+    private static final int HEXTILE_RAW = 0x01;
+    private static final int HEXTILE_BACKGROUND_SPECIFIED = 0x02;
+    private static final int HEXTILE_FOREGROUND_SPECIFIED = 0x04;
+    private static final int HEXTILE_ANY_SUBRECTS = 0x08;
+    private static final int HEXTILE_SUBRECTS_COLOURED = 0x10;
+
+    /** ZRLE keeps one zlib stream going for the whole connection */
+    private Inflater m_zrleInflater;
+    /** Holds inflated ZRLE data */
+    private byte [] m_zrleData;
+
+    public RfbDecoder() {
+        m_zrleInflater = new Inflater();
+        m_zrleData = new byte [4096];
+    }
+
+    /**
+     * Frees the zlib stream; the decoder can't be used afterwards
+     */
+    public void close() {
+        m_zrleInflater.end();
+    }
+
+    /** Checks if we know how to read and decode the given encoding */
+    public static boolean isSupported(int encoding) {
+        return encoding == RfbProtocol.ENCODING_RAW
+            || encoding == RfbProtocol.ENCODING_COPY_RECT
+            || encoding == RfbProtocol.ENCODING_HEXTILE
+            || encoding == RfbProtocol.ENCODING_ZRLE;
+    }
+
+    /**
+     * Reads the payload of a rectangle whose header has just been read.
+     * Hextile has no length up front, so its tiles are walked to find
+     * where it ends.  The rectangle must already have been checked
+     * against the framebuffer, since its size decides how much is read.
+     */
+    public static byte [] readPayload(DataInputStream in, int encoding, int width, int height) throws IOException {
+        switch (encoding) {
+        case RfbProtocol.ENCODING_RAW: {
+            byte [] payload = new byte [width * height * BYTES_PER_PIXEL];
+            in.readFully(payload);
+            return payload;
+        }
+        case RfbProtocol.ENCODING_COPY_RECT: {
+            byte [] payload = new byte [4];
+            in.readFully(payload);
+            return payload;
+        }
+        case RfbProtocol.ENCODING_ZRLE: {
+            int length = in.readInt();
+            // Even uncompressed, ZRLE takes at most a run length byte and a
+            // compact pixel per pixel plus a palette per tile, well under this
+            long maxLength = 2L * BYTES_PER_PIXEL * width * height + 4096;
+            if (length < 0 || length > maxLength) {
+                throw new IOException("Bad ZRLE length " + Integer.toString(length));
+            }
+            byte [] payload = new byte [length];
+            in.readFully(payload);
+            return payload;
+        }
+        case RfbProtocol.ENCODING_HEXTILE:
+            return readHextilePayload(in, width, height);
+        default:
+            throw new IOException("Unsupported encoding " + Integer.toString(encoding));
+        }
+    }
+
+    private static byte [] readHextilePayload(DataInputStream in, int width, int height) throws IOException {
+        byte [] payload = new byte [1024];
+        int length = 0;
+        for (int ty = 0; ty < height; ty += 16) {
+            int th = Math.min(16, height - ty);
+            for (int tx = 0; tx < width; tx += 16) {
+                int tw = Math.min(16, width - tx);
+                // Largest tile: mask, then raw pixels or colours and 255 coloured subrects
+                int largest = 1 + Math.max(tw * th * BYTES_PER_PIXEL, 2 * BYTES_PER_PIXEL + 1 + 255 * (BYTES_PER_PIXEL + 2));
+                if (payload.length - length < largest) {
+                    payload = Arrays.copyOf(payload, Math.max(payload.length * 2, length + largest));
+                }
+                int mask = in.readUnsignedByte();
+                payload[length++] = (byte) mask;
+                if ((mask & HEXTILE_RAW) != 0) {
+                    in.readFully(payload, length, tw * th * BYTES_PER_PIXEL);
+                    length += tw * th * BYTES_PER_PIXEL;
+                    continue;
+                }
+                int fixed = 0;
+                if ((mask & HEXTILE_BACKGROUND_SPECIFIED) != 0) {
+                    fixed += BYTES_PER_PIXEL;
+                }
+                if ((mask & HEXTILE_FOREGROUND_SPECIFIED) != 0) {
+                    fixed += BYTES_PER_PIXEL;
+                }
+                in.readFully(payload, length, fixed);
+                length += fixed;
+                if ((mask & HEXTILE_ANY_SUBRECTS) != 0) {
+                    int count = in.readUnsignedByte();
+                    payload[length++] = (byte) count;
+                    int subrectLength = ((mask & HEXTILE_SUBRECTS_COLOURED) != 0) ? BYTES_PER_PIXEL + 2 : 2;
+                    in.readFully(payload, length, count * subrectLength);
+                    length += count * subrectLength;
+                }
+            }
+        }
+        return Arrays.copyOf(payload, length);
+    }
+
+    /**
+     * Decodes a rectangle into the framebuffer.  ZRLE uses this decoder's
+     * zlib stream, so ZRLE rectangles must be decoded one at a time and
+     * in the order they arrived.
+     * @throws IOException if the payload is corrupt
+     */
+    public void decode(RfbRectangle rect, RfbFramebuffer fb) throws IOException {
+        if (!fb.contains(rect.x, rect.y, rect.width, rect.height)) {
+            throw new IOException("Rectangle outside the framebuffer");
+        }
+        try {
+            switch (rect.encoding) {
+            case RfbProtocol.ENCODING_RAW:
+                decodeRaw(rect, fb);
+                break;
+            case RfbProtocol.ENCODING_COPY_RECT:
+                decodeCopyRect(rect, fb);
+                break;
+            case RfbProtocol.ENCODING_HEXTILE:
+                decodeHextile(rect, fb);
+                break;
+            case RfbProtocol.ENCODING_ZRLE:
+                decodeZrle(rect, fb);
+                break;
+            default:
+                throw new IOException("Unsupported encoding " + Integer.toString(rect.encoding));
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt rectangle, encoding " + Integer.toString(rect.encoding));
+        }
+    }
+
+    private static int pixel(byte [] data, int off) {
+        return 0xFF000000
+             | ((0xFF & data[off + 2]) << 16)
+             | ((0xFF & data[off + 1]) << 8)
+             | (0xFF & data[off]);
+    }
+
+    private static void decodeRaw(RfbRectangle rect, RfbFramebuffer fb) {
+        byte [] data = rect.payload;
+        int [] pixels = fb.pixels;
+        int off = 0;
+        for (int row = 0; row < rect.height; row++) {
+            int start = (rect.y + row) * fb.width + rect.x;
+            for (int i = start; i < start + rect.width; i++) {
+                pixels[i] = pixel(data, off);
+                off += BYTES_PER_PIXEL;
+            }
+        }
+    }
+
+    private static void decodeCopyRect(RfbRectangle rect, RfbFramebuffer fb) throws IOException {
+        int srcX = RfbProtocol.getU16(rect.payload, 0);
+        int srcY = RfbProtocol.getU16(rect.payload, 2);
+        if (!fb.contains(srcX, srcY, rect.width, rect.height)) {
+            throw new IOException("CopyRect source outside the framebuffer");
+        }
+        fb.copyRect(srcX, srcY, rect.x, rect.y, rect.width, rect.height);
+    }
+
+    private static void decodeHextile(RfbRectangle rect, RfbFramebuffer fb) {
+        byte [] data = rect.payload;
+        int off = 0;
+        // Background and foreground carry over from tile to tile
+        int background = 0xFF000000;
+        int foreground = 0xFF000000;
+        for (int ty = rect.y; ty < rect.y + rect.height; ty += 16) {
+            int th = Math.min(16, rect.y + rect.height - ty);
+            for (int tx = rect.x; tx < rect.x + rect.width; tx += 16) {
+                int tw = Math.min(16, rect.x + rect.width - tx);
+                int mask = 0xFF & data[off++];
+                if ((mask & HEXTILE_RAW) != 0) {
+                    for (int row = ty; row < ty + th; row++) {
+                        int start = row * fb.width + tx;
+                        for (int i = start; i < start + tw; i++) {
+                            fb.pixels[i] = pixel(data, off);
+                            off += BYTES_PER_PIXEL;
+                        }
+                    }
+                    continue;
+                }
+                if ((mask & HEXTILE_BACKGROUND_SPECIFIED) != 0) {
+                    background = pixel(data, off);
+                    off += BYTES_PER_PIXEL;
+                }
+                fb.fillRect(tx, ty, tw, th, background);
+                if ((mask & HEXTILE_FOREGROUND_SPECIFIED) != 0) {
+                    foreground = pixel(data, off);
+                    off += BYTES_PER_PIXEL;
+                }
+                if ((mask & HEXTILE_ANY_SUBRECTS) != 0) {
+                    int count = 0xFF & data[off++];
+                    boolean coloured = (mask & HEXTILE_SUBRECTS_COLOURED) != 0;
+                    for (int i = 0; i < count; i++) {
+                        int colour = foreground;
+                        if (coloured) {
+                            colour = pixel(data, off);
+                            off += BYTES_PER_PIXEL;
+                        }
+                        int xy = 0xFF & data[off++];
+                        int wh = 0xFF & data[off++];
+                        int sx = xy >> 4;
+                        int sy = xy & 0x0F;
+                        int sw = (wh >> 4) + 1;
+                        int sh = (wh & 0x0F) + 1;
+                        if (sx + sw > tw || sy + sh > th) {
+                            throw new ArrayIndexOutOfBoundsException();
+                        }
+                        fb.fillRect(tx + sx, ty + sy, sw, sh, colour);
+                    }
+                }
+            }
+        }
+    }
+
+    private void decodeZrle(RfbRectangle rect, RfbFramebuffer fb) throws IOException {
+        // The server flushes the zlib stream at the end of each rectangle,
+        // so inflating everything we were given produces whole tiles
+        m_zrleInflater.setInput(rect.payload);
+        int length = 0;
+        try {
+            while (true) {
+                if (length == m_zrleData.length) {
+                    m_zrleData = Arrays.copyOf(m_zrleData, m_zrleData.length * 2);
+                }
+                int inflated = m_zrleInflater.inflate(m_zrleData, length, m_zrleData.length - length);
+                // With room left to fill, nothing inflated means the input is used up
+                if (inflated == 0) {
+                    break;
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt ZRLE data");
+        }
+
+        byte [] data = m_zrleData;
+        int off = 0;
+        int [] palette = new int [128];
+        for (int ty = rect.y; ty < rect.y + rect.height; ty += 64) {
+            int th = Math.min(64, rect.y + rect.height - ty);
+            for (int tx = rect.x; tx < rect.x + rect.width; tx += 64) {
+                int tw = Math.min(64, rect.x + rect.width - tx);
+                int subencoding = 0xFF & data[off++];
+                if (subencoding == 0) {
+                    // Raw compact pixels
+                    for (int row = ty; row < ty + th; row++) {
+                        int start = row * fb.width + tx;
+                        for (int i = start; i < start + tw; i++) {
+                            fb.pixels[i] = pixel(data, off);
+                            off += BYTES_PER_CPIXEL;
+                        }
+                    }
+                }
+                else if (subencoding == 1) {
+                    // Solid tile
+                    fb.fillRect(tx, ty, tw, th, pixel(data, off));
+                    off += BYTES_PER_CPIXEL;
+                }
+                else if (subencoding <= 16) {
+                    // Packed palette, each row starting on a byte boundary
+                    int paletteSize = subencoding;
+                    for (int i = 0; i < paletteSize; i++) {
+                        palette[i] = pixel(data, off);
+                        off += BYTES_PER_CPIXEL;
+                    }
+                    int bits = paletteSize == 2 ? 1 : (paletteSize <= 4 ? 2 : 4);
+                    int indexMask = (1 << bits) - 1;
+                    for (int row = ty; row < ty + th; row++) {
+                        int start = row * fb.width + tx;
+                        int shift = 8;
+                        int b = 0;
+                        for (int i = start; i < start + tw; i++) {
+                            if (shift == 0 || shift == 8) {
+                                b = 0xFF & data[off++];
+                                shift = 8;
+                            }
+                            shift -= bits;
+                            fb.pixels[i] = palette[(b >> shift) & indexMask];
+                        }
+                    }
+                }
+                else if (subencoding == 128) {
+                    // Plain run-length encoding
+                    off = decodeZrleRuns(data, off, fb, tx, ty, tw, th, null);
+                }
+                else if (subencoding >= 130) {
+                    // Palette run-length encoding
+                    int paletteSize = subencoding - 128;
+                    for (int i = 0; i < paletteSize; i++) {
+                        palette[i] = pixel(data, off);
+                        off += BYTES_PER_CPIXEL;
+                    }
+                    off = decodeZrleRuns(data, off, fb, tx, ty, tw, th, palette);
+                }
+                else {
+                    throw new IOException("Bad ZRLE subencoding " + Integer.toString(subencoding));
+                }
+                if (off > length) {
+                    throw new IOException("ZRLE tile ran past the end of its data");
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the runs of a run-length encoded ZRLE tile
+     * @param palette - null for plain RLE, otherwise the tile's palette
+     * @return the offset just past the tile's data
+     */
+    private static int decodeZrleRuns(byte [] data, int off, RfbFramebuffer fb,
+            int tx, int ty, int tw, int th, int [] palette) {
+        int row = ty;
+        int column = tx;
+        int remaining = tw * th;
+        while (remaining > 0) {
+            int colour;
+            boolean isRun;
+            if (palette == null) {
+                colour = pixel(data, off);
+                off += BYTES_PER_CPIXEL;
+                isRun = true;
+            }
+            else {
+                // The top bit of a palette index says if a run length follows
+                int index = 0xFF & data[off++];
+                colour = palette[index & 0x7F];
+                isRun = (index & 0x80) != 0;
+            }
+            int runLength = 1;
+            if (isRun) {
+                // Run length is one more than the sum of its bytes,
+                // which carry on while they are 255
+                int b;
+                do {
+                    b = 0xFF & data[off++];
+                    runLength += b;
+                } while (b == 255);
+            }
+            if (runLength > remaining) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            remaining -= runLength;
+            while (runLength > 0) {
+                int count = Math.min(runLength, tx + tw - column);
+                int start = row * fb.width + column;
+                Arrays.fill(fb.pixels, start, start + count, colour);
+                runLength -= count;
+                column += count;
+                if (column == tx + tw) {
+                    column = tx;
+                    row++;
+                }
+            }
+        }
+        return off;
+    }
+
+}
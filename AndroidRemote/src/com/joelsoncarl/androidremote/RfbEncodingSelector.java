@@ -0,0 +1,285 @@
+package com.joelsoncarl.androidremote;
+
+import java.util.Locale;
+
+/**
+ * Picks the encoding list to send in SetEncodings from what the session
+ * has measured so far.  For each encoding we keep how many bytes a pixel
+ * costs on the wire and how long a pixel takes to decode, and for the
+ * link how fast update data arrives.  The cheapest encoding is the one
+ * with the lowest (bytes per pixel / link speed + decode time per
+ * pixel): Raw on a fast LAN, ZRLE on a slow link, Hextile in between.
+ * The zlib compression level follows the link speed too.
+ *
+ * Only the encoding in use gets measured, so the others are estimated
+ * from typical figures until they have been tried.  To stop the choice
+ * flapping, a change has to win by a clear margin on several evaluations
+ * in a row, and never sooner than a minimum time after the last change.
+ *
+ * Called from the receiving thread, and read from the UI for status.
+ */
+public class RfbEncodingSelector {
+
+    /** The encodings we can choose between */
+    private static final int [] CANDIDATES = {
+        RfbProtocol.ENCODING_RAW, RfbProtocol.ENCODING_HEXTILE, RfbProtocol.ENCODING_ZRLE
+    };
+    /** Typical bytes per pixel of each candidate, used until measured */
+    private static final double [] TYPICAL_BYTES_PER_PIXEL = { 4.0, 1.0, 0.3 };
+    /** Typical decode nanoseconds per pixel of each candidate, used until measured */
+    private static final double [] TYPICAL_DECODE_NANOS_PER_PIXEL = { 3.0, 8.0, 20.0 };
+
+    /** Link speed assumed before anything has been measured (bytes/s) */
+    private static final double TYPICAL_BYTES_PER_SECOND = 1000000.0;
+    /** Updates smaller than this are mostly latency, so don't say much about speed */
+    private static final long MIN_BANDWIDTH_SAMPLE_BYTES = 16 * 1024;
+    /** Fewer pixels than this in an evaluation period are ignored */
+    private static final long MIN_PIXEL_SAMPLE = 4096;
+    /** Weight of the newest period in the running averages */
+    private static final double SMOOTHING = 0.3;
+
+    /** How often the choice is reconsidered */
+    private static final long EVALUATION_INTERVAL_MS = 1000;
+    /** A new choice has to win this many evaluations in a row */
+    private static final int EVALUATIONS_TO_SWITCH = 3;
+    /** The shortest time between changes */
+    private static final long MIN_DWELL_MS = 5000;
+    /** A new encoding has to be at least this much cheaper than the current one */
+    private static final double SWITCH_MARGIN = 0.25;
+
+    /** Running averages per candidate */
+    private double [] m_bytesPerPixel;
+    private double [] m_decodeNanosPerPixel;
+    /** Running average of the link speed in bytes per second */
+    private double m_bytesPerSecond;
+    private boolean m_bandwidthMeasured;
+
+    /** Totals since the last evaluation, per candidate */
+    private long [] m_periodPixels;
+    private long [] m_periodBytes;
+    private long [] m_periodDecodeNanos;
+
+    /** The current choice (index into CANDIDATES) and compression level */
+    private int m_current;
+    private int m_compressLevel;
+    /** What the last few evaluations wanted instead, and how many times in a row */
+    private int m_proposed;
+    private int m_proposedCompressLevel;
+    private int m_proposedCount;
+    private long m_lastEvaluationMs;
+    private long m_lastChangeMs;
+    private String m_reason;
+
+    /**
+     * Constructor for RfbEncodingSelector
+     * @param nowMs - current time, which starts the first dwell period
+     */
+    public RfbEncodingSelector(long nowMs) {
+        int n = CANDIDATES.length;
+        m_bytesPerPixel = TYPICAL_BYTES_PER_PIXEL.clone();
+        m_decodeNanosPerPixel = TYPICAL_DECODE_NANOS_PER_PIXEL.clone();
+        m_bytesPerSecond = TYPICAL_BYTES_PER_SECOND;
+        m_bandwidthMeasured = false;
+        m_periodPixels = new long [n];
+        m_periodBytes = new long [n];
+        m_periodDecodeNanos = new long [n];
+        // Start with ZRLE, which does no worse than Hextile on a LAN and
+        // far better than Raw on anything slower
+        m_current = indexOf(RfbProtocol.ENCODING_ZRLE);
+        m_compressLevel = compressLevelFor(m_bytesPerSecond);
+        m_proposed = m_current;
+        m_proposedCompressLevel = m_compressLevel;
+        m_proposedCount = 0;
+        m_lastEvaluationMs = nowMs;
+        m_lastChangeMs = nowMs;
+        m_reason = "initial choice";
+    }
+
+    private static int indexOf(int encoding) {
+        for (int i = 0; i < CANDIDATES.length; i++) {
+            if (CANDIDATES[i] == encoding) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records a decoded rectangle
+     * @param encoding - the rectangle's encoding
+     * @param pixels - width times height
+     * @param bytes - size of the payload on the wire
+     * @param decodeNanos - time taken to decode it
+     */
+    public synchronized void recordRectangle(int encoding, long pixels, long bytes, long decodeNanos) {
+        int i = indexOf(encoding);
+        if (i < 0) {
+            return;
+        }
+        m_periodPixels[i] += pixels;
+        m_periodBytes[i] += bytes;
+        m_periodDecodeNanos[i] += decodeNanos;
+    }
+
+    /**
+     * Records a whole FramebufferUpdate having been read
+     * @param bytes - size of the update on the wire
+     * @param wireNanos - time from its first byte to its last
+     */
+    public synchronized void recordUpdate(long bytes, long wireNanos) {
+        if (bytes < MIN_BANDWIDTH_SAMPLE_BYTES || wireNanos <= 0) {
+            return;
+        }
+        double bytesPerSecond = bytes * 1e9 / wireNanos;
+        if (m_bandwidthMeasured) {
+            m_bytesPerSecond += SMOOTHING * (bytesPerSecond - m_bytesPerSecond);
+        }
+        else {
+            m_bytesPerSecond = bytesPerSecond;
+            m_bandwidthMeasured = true;
+        }
+    }
+
+    /** Estimated cost in nanoseconds per pixel of the given candidate */
+    private double costOf(int i) {
+        return m_bytesPerPixel[i] * 1e9 / m_bytesPerSecond + m_decodeNanosPerPixel[i];
+    }
+
+    /**
+     * Slow links want the most compression, fast ones the least CPU
+     */
+    private static int compressLevelFor(double bytesPerSecond) {
+        if (bytesPerSecond < 256 * 1024) {
+            return 9;
+        }
+        else if (bytesPerSecond < 2 * 1024 * 1024) {
+            return 6;
+        }
+        return 1;
+    }
+
+    /**
+     * Folds in the latest measurements and decides whether the encoding
+     * list should change.  Cheap to call after every update; it only does
+     * anything once per evaluation interval.
+     * @param nowMs - current time
+     * @return true if getEncodings() has changed and should be re-sent
+     */
+    public synchronized boolean evaluate(long nowMs) {
+        if (nowMs - m_lastEvaluationMs < EVALUATION_INTERVAL_MS) {
+            return false;
+        }
+        m_lastEvaluationMs = nowMs;
+
+        for (int i = 0; i < CANDIDATES.length; i++) {
+            if (m_periodPixels[i] >= MIN_PIXEL_SAMPLE) {
+                double bytesPerPixel = (double) m_periodBytes[i] / m_periodPixels[i];
+                double decodeNanosPerPixel = (double) m_periodDecodeNanos[i] / m_periodPixels[i];
+                m_bytesPerPixel[i] += SMOOTHING * (bytesPerPixel - m_bytesPerPixel[i]);
+                m_decodeNanosPerPixel[i] += SMOOTHING * (decodeNanosPerPixel - m_decodeNanosPerPixel[i]);
+            }
+            m_periodPixels[i] = 0;
+            m_periodBytes[i] = 0;
+            m_periodDecodeNanos[i] = 0;
+        }
+
+        int best = m_current;
+        for (int i = 0; i < CANDIDATES.length; i++) {
+            if (costOf(i) < costOf(best)) {
+                best = i;
+            }
+        }
+        // Only move if it's clearly better
+        if (best != m_current && costOf(best) > costOf(m_current) * (1 - SWITCH_MARGIN)) {
+            best = m_current;
+        }
+        int compressLevel = compressLevelFor(m_bytesPerSecond);
+
+        if (best == m_current && compressLevel == m_compressLevel) {
+            m_proposedCount = 0;
+            return false;
+        }
+        if (best == m_proposed && compressLevel == m_proposedCompressLevel) {
+            m_proposedCount++;
+        }
+        else {
+            m_proposed = best;
+            m_proposedCompressLevel = compressLevel;
+            m_proposedCount = 1;
+        }
+        if (m_proposedCount < EVALUATIONS_TO_SWITCH || nowMs - m_lastChangeMs < MIN_DWELL_MS) {
+            return false;
+        }
+
+        if (best != m_current) {
+            m_reason = String.format(Locale.US, "%.0f ns/pixel against %.0f for %s at %s",
+                    costOf(best), costOf(m_current), nameOf(CANDIDATES[m_current]), speed());
+        }
+        else {
+            m_reason = "compression level " + Integer.toString(compressLevel) + " suits " + speed();
+        }
+        m_current = best;
+        m_compressLevel = compressLevel;
+        m_proposedCount = 0;
+        m_lastChangeMs = nowMs;
+        return true;
+    }
+
+    /**
+     * The encoding list to send in SetEncodings: CopyRect, the chosen
+     * encoding, the other candidates cheapest first, then pseudo-encodings
+     */
+    public synchronized int [] getEncodings() {
+        int [] encodings = new int [CANDIDATES.length + 3];
+        int n = 0;
+        encodings[n++] = RfbProtocol.ENCODING_COPY_RECT;
+        encodings[n++] = CANDIDATES[m_current];
+        boolean [] used = new boolean [CANDIDATES.length];
+        used[m_current] = true;
+        for (int k = 1; k < CANDIDATES.length; k++) {
+            int next = -1;
+            for (int i = 0; i < CANDIDATES.length; i++) {
+                if (!used[i] && (next < 0 || costOf(i) < costOf(next))) {
+                    next = i;
+                }
+            }
+            used[next] = true;
+            encodings[n++] = CANDIDATES[next];
+        }
+        encodings[n++] = RfbProtocol.ENCODING_DESKTOP_SIZE;
+        encodings[n++] = RfbProtocol.ENCODING_COMPRESS_LEVEL_0 + m_compressLevel;
+        return encodings;
+    }
+
+    /**
+     * Describes the current choice and why it was made
+     */
+    public synchronized String getStatus() {
+        return "Encoding: " + nameOf(CANDIDATES[m_current])
+             + ", compression " + Integer.toString(m_compressLevel)
+             + " (" + m_reason + ")";
+    }
+
+    private String speed() {
+        if (!m_bandwidthMeasured) {
+            return "unmeasured speed";
+        }
+        return String.format(Locale.US, "%.1f Mbit/s", m_bytesPerSecond * 8 / 1e6);
+    }
+
+    public static String nameOf(int encoding) {
+        switch (encoding) {
+        case RfbProtocol.ENCODING_RAW:
+            return "Raw";
+        case RfbProtocol.ENCODING_COPY_RECT:
+            return "CopyRect";
+        case RfbProtocol.ENCODING_HEXTILE:
+            return "Hextile";
+        case RfbProtocol.ENCODING_ZRLE:
+            return "ZRLE";
+        default:
+            return Integer.toString(encoding);
+        }
+    }
+
+}
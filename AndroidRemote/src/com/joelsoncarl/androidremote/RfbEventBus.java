@@ -0,0 +1,325 @@
+package com.joelsoncarl.androidremote;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries what happens on a connection (state changes, handshake
+ * progress, errors, metrics and the Bell) from the threads doing the
+ * I/O to whoever wants to know, without those threads touching the UI.
+ *
+ * Each listener subscribes with the executor to deliver on, e.g. one
+ * posting to the main looper.  Events are coalesced per listener: while
+ * a delivery is waiting to run, newer events of a kind replace older
+ * ones (errors and bells are counted), so a listener has at most one
+ * delivery queued however fast events are posted.  Within a delivery
+ * the kinds come in the order they were last posted.
+ *
+ * Posting is safe from any thread.  Nothing in here depends on Android.
+ */
+public class RfbEventBus {
+
+    /** Connection states */
+    public enum State {
+        /** No connection */
+        DISCONNECTED,
+        /** Opening the socket */
+        CONNECTING,
+        /** Socket open, handshake running */
+        CONNECTED,
+        /** Handshake done, the session is running */
+        READY
+    }
+
+    /**
+     * A snapshot of how the session is doing
+     */
+    public static class Metrics {
+        /** The encoding choice and why, see RfbEncodingSelector.getStatus() */
+        public final String encodingStatus;
+        public final double updatesPerSecond;
+        public final double bytesPerSecond;
+
+        public Metrics(String encodingStatus, double updatesPerSecond, double bytesPerSecond) {
+            this.encodingStatus = encodingStatus;
+            this.updatesPerSecond = updatesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    /**
+     * Receives events, on the executor it subscribed with
+     */
+    public interface Listener {
+        /**
+         * @param message - describes the change, may be null
+         */
+        void onStateChanged(State state, String message);
+        void onProgress(String message);
+        /**
+         * @param message - the latest error
+         * @param count - how many errors were coalesced into this call
+         */
+        void onError(String message, int count);
+        void onMetrics(Metrics metrics);
+        /**
+         * @param count - how many Bell messages were coalesced into this call
+         */
+        void onBell(int count);
+    }
+
+    /**
+     * A Listener that ignores everything, to extend for the events wanted
+     */
+    public static class Adapter implements Listener {
+        public void onStateChanged(State state, String message) { }
+        public void onProgress(String message) { }
+        public void onError(String message, int count) { }
+        public void onMetrics(Metrics metrics) { }
+        public void onBell(int count) { }
+    }
+
+    /** Kinds of event, indexing Subscription.m_pendingSeq */
+    private static final int STATE = 0;
+    private static final int PROGRESS = 1;
+    private static final int ERROR = 2;
+    private static final int METRICS = 3;
+    private static final int BELL = 4;
+    private static final int KINDS = 5;
+
+    private CopyOnWriteArrayList<Subscription> m_subscriptions;
+    /** Orders events across kinds; 0 means none pending */
+    private AtomicLong m_sequence;
+
+    public RfbEventBus() {
+        m_subscriptions = new CopyOnWriteArrayList<Subscription>();
+        m_sequence = new AtomicLong(0);
+    }
+
+    /**
+     * Starts delivering events to a listener
+     * @param executor - runs the deliveries, e.g. on the UI thread
+     */
+    public void subscribe(Listener listener, Executor executor) {
+        m_subscriptions.add(new Subscription(listener, executor));
+    }
+
+    /**
+     * Stops delivering events to a listener; a delivery already queued
+     * is dropped
+     */
+    public void unsubscribe(Listener listener) {
+        for (Subscription subscription : m_subscriptions) {
+            if (subscription.m_listener == listener) {
+                subscription.m_active = false;
+                m_subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    public void postState(State state, String message) {
+        long seq = m_sequence.incrementAndGet();
+        for (Subscription subscription : m_subscriptions) {
+            subscription.postState(seq, state, message);
+        }
+    }
+
+    public void postProgress(String message) {
+        long seq = m_sequence.incrementAndGet();
+        for (Subscription subscription : m_subscriptions) {
+            subscription.postProgress(seq, message);
+        }
+    }
+
+    public void postError(String message) {
+        long seq = m_sequence.incrementAndGet();
+        for (Subscription subscription : m_subscriptions) {
+            subscription.postError(seq, message);
+        }
+    }
+
+    public void postMetrics(Metrics metrics) {
+        long seq = m_sequence.incrementAndGet();
+        for (Subscription subscription : m_subscriptions) {
+            subscription.postMetrics(seq, metrics);
+        }
+    }
+
+    public void postBell() {
+        long seq = m_sequence.incrementAndGet();
+        for (Subscription subscription : m_subscriptions) {
+            subscription.postBell(seq);
+        }
+    }
+
+    /**
+     * A listener, its executor and the events waiting for it.  Runs as
+     * the delivery itself.
+     */
+    private static class Subscription implements Runnable {
+        private final Listener m_listener;
+        private final Executor m_executor;
+        private volatile boolean m_active;
+
+        /** Sequence number of each kind of event waiting, or 0 */
+        private long [] m_pendingSeq;
+        private State m_state;
+        private String m_stateMessage;
+        private String m_progress;
+        private String m_error;
+        private int m_errors;
+        private Metrics m_metrics;
+        private int m_bells;
+        /** Set while a delivery is queued on the executor */
+        private boolean m_scheduled;
+
+        Subscription(Listener listener, Executor executor) {
+            m_listener = listener;
+            m_executor = executor;
+            m_active = true;
+            m_pendingSeq = new long [KINDS];
+            m_scheduled = false;
+        }
+
+        void postState(long seq, State state, String message) {
+            boolean schedule;
+            synchronized (this) {
+                m_state = state;
+                m_stateMessage = message;
+                schedule = markPending(STATE, seq);
+            }
+            if (schedule) {
+                schedule();
+            }
+        }
+
+        void postProgress(long seq, String message) {
+            boolean schedule;
+            synchronized (this) {
+                m_progress = message;
+                schedule = markPending(PROGRESS, seq);
+            }
+            if (schedule) {
+                schedule();
+            }
+        }
+
+        void postError(long seq, String message) {
+            boolean schedule;
+            synchronized (this) {
+                m_error = message;
+                m_errors++;
+                schedule = markPending(ERROR, seq);
+            }
+            if (schedule) {
+                schedule();
+            }
+        }
+
+        void postMetrics(long seq, Metrics metrics) {
+            boolean schedule;
+            synchronized (this) {
+                m_metrics = metrics;
+                schedule = markPending(METRICS, seq);
+            }
+            if (schedule) {
+                schedule();
+            }
+        }
+
+        void postBell(long seq) {
+            boolean schedule;
+            synchronized (this) {
+                m_bells++;
+                schedule = markPending(BELL, seq);
+            }
+            if (schedule) {
+                schedule();
+            }
+        }
+
+        /**
+         * Records an event as waiting; call holding the lock
+         * @return true if a delivery needs queuing
+         */
+        private boolean markPending(int kind, long seq) {
+            m_pendingSeq[kind] = seq;
+            if (m_scheduled) {
+                return false;
+            }
+            m_scheduled = true;
+            return true;
+        }
+
+        private void schedule() {
+            try {
+                m_executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The executor has shut down, so nothing more can be delivered
+                m_active = false;
+            }
+        }
+
+        public void run() {
+            long [] pendingSeq;
+            State state;
+            String stateMessage, progress, error;
+            int errors, bells;
+            Metrics metrics;
+            synchronized (this) {
+                pendingSeq = m_pendingSeq.clone();
+                state = m_state;
+                stateMessage = m_stateMessage;
+                progress = m_progress;
+                error = m_error;
+                errors = m_errors;
+                metrics = m_metrics;
+                bells = m_bells;
+                for (int i = 0; i < KINDS; i++) {
+                    m_pendingSeq[i] = 0;
+                }
+                m_stateMessage = null;
+                m_progress = null;
+                m_error = null;
+                m_errors = 0;
+                m_metrics = null;
+                m_bells = 0;
+                m_scheduled = false;
+            }
+
+            // Deliver the oldest kind first
+            while (m_active) {
+                int next = -1;
+                for (int i = 0; i < KINDS; i++) {
+                    if (pendingSeq[i] != 0 && (next < 0 || pendingSeq[i] < pendingSeq[next])) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                pendingSeq[next] = 0;
+                switch (next) {
+                case STATE:
+                    m_listener.onStateChanged(state, stateMessage);
+                    break;
+                case PROGRESS:
+                    m_listener.onProgress(progress);
+                    break;
+                case ERROR:
+                    m_listener.onError(error, errors);
+                    break;
+                case METRICS:
+                    m_listener.onMetrics(metrics);
+                    break;
+                default:
+                    m_listener.onBell(bells);
+                    break;
+                }
+            }
+        }
+    }
+
+}
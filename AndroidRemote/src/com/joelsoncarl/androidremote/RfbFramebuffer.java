@@ -0,0 +1,63 @@
+package com.joelsoncarl.androidremote;
+
+/**
+ * The client's copy of the remote screen, one ARGB int per pixel, row by
+ * row.  Written by the decoders in RfbDecoder.
+ */
+public class RfbFramebuffer {
+
+    /** The most pixels a framebuffer may have (an 8K screen fits) */
+    public static final long MAX_PIXELS = 1L << 26;
+
+    public final int width;
+    public final int height;
+    public final int [] pixels;
+
+    public RfbFramebuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixels = new int [width * height];
+    }
+
+    public void fillRect(int x, int y, int w, int h, int colour) {
+        for (int row = y; row < y + h; row++) {
+            int start = row * width + x;
+            for (int i = start; i < start + w; i++) {
+                pixels[i] = colour;
+            }
+        }
+    }
+
+    /**
+     * Copies a rectangle from one part of the framebuffer to another,
+     * taking care with overlapping areas
+     */
+    public void copyRect(int srcX, int srcY, int x, int y, int w, int h) {
+        if (srcY < y) {
+            // Moving down, so copy from the bottom up
+            for (int row = h - 1; row >= 0; row--) {
+                System.arraycopy(pixels, (srcY + row) * width + srcX, pixels, (y + row) * width + x, w);
+            }
+        }
+        else {
+            // arraycopy() already copes with overlap within a row
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(pixels, (srcY + row) * width + srcX, pixels, (y + row) * width + x, w);
+            }
+        }
+    }
+
+    /** Checks the rectangle lies inside the framebuffer */
+    public boolean contains(int x, int y, int w, int h) {
+        return contains(width, height, x, y, w, h);
+    }
+
+    /**
+     * Checks a rectangle lies inside a framebuffer of the given size, for
+     * checking before the framebuffer exists
+     */
+    public static boolean contains(int fbWidth, int fbHeight, int x, int y, int w, int h) {
+        return x >= 0 && y >= 0 && w >= 0 && h >= 0 && x + w <= fbWidth && y + h <= fbHeight;
+    }
+
+}
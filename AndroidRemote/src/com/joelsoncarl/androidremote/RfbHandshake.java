@@ -0,0 +1,539 @@
+package com.joelsoncarl.androidremote;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Runs the RFB handshaking and initialization phases over an already
+ * connected socket.  This blocks, so the app calls it from a background
+ * task and the command-line tools call it from their own threads.
+ *
+ * Security types are chosen in the order VeNCrypt (TLS, see RfbTls), VNC
+ * Authentication, None; the last two only if unencrypted connections are
+ * allowed.  After a VeNCrypt handshake getSocket(), getInput() and
+ * getOutput() give the TLS socket and its streams.  The time spent in
+ * each phase is kept for getPhaseNanos().
+ */
+public class RfbHandshake {
+
+    /**
+     * Receives progress messages while the handshake runs
+     */
+    public interface Listener {
+        void onProgress(String message);
+    }
+
+    /**
+     * What the server told us in its ServerInit message
+     */
+    public static class ServerInit {
+        public final int fbWidth;
+        public final int fbHeight;
+        public final int bitsPerPixel;
+        public final String name;
+
+        ServerInit(int fbWidth, int fbHeight, int bitsPerPixel, String name) {
+            this.fbWidth = fbWidth;
+            this.fbHeight = fbHeight;
+            this.bitsPerPixel = bitsPerPixel;
+            this.name = name;
+        }
+    }
+
+    /** Handshake phases, for getPhaseNanos() */
+    public static final int PHASE_VERSION = 0;
+    public static final int PHASE_SECURITY = 1;
+    public static final int PHASE_TLS = 2;
+    public static final int PHASE_AUTHENTICATION = 3;
+    public static final int PHASE_INITIALIZATION = 4;
+    public static final String [] PHASE_NAMES = { "version", "security", "tls", "auth", "init" };
+
+    /** Keeps certificate pins for the tools, which have nowhere to save them */
+    private static final RfbTls.PinStore MEMORY_PINS = new RfbTls.MemoryPinStore();
+
+    /** Socket connection to the RFB Server */
+    private Socket m_sock;
+    /** Input Stream for reading data from the RFB Server */
+    private DataInputStream m_input;
+    /** Output Stream for sending data to the RFB Server */
+    private DataOutputStream m_output;
+    /** Where progress messages go, may be null */
+    private Listener m_listener;
+    /** Holds data to send or data read from the server */
+    private byte [] m_data;
+    /** Holds the RFB Protocol Version */
+    private short m_protocolVersion;
+    /** Holds the RFB Security Type */
+    private int m_securityType;
+    /** Password for VNC Authentication, or null if there is none */
+    private String m_password;
+    /** Whether security types that leave the session unencrypted may be used */
+    private boolean m_allowPlaintext;
+    /** Where TLS certificate pins are kept */
+    private RfbTls.PinStore m_pins;
+    /** Set once TLS is running, and whether it resumed an earlier session */
+    private boolean m_encrypted, m_tlsResumed;
+    /** Time spent in each phase, and when the current one started */
+    private long [] m_phaseNanos;
+    private long m_phaseStart;
+
+    /**
+     * Constructor for RfbHandshake
+     * @param sock - a connected socket to the RFB Server
+     * @param listener - receives progress messages, may be null
+     */
+    public RfbHandshake(Socket sock, Listener listener) throws IOException {
+        m_sock = sock;
+        m_input = new DataInputStream(sock.getInputStream());
+        m_output = new DataOutputStream(sock.getOutputStream());
+        m_listener = listener;
+        m_data = new byte [64];
+        m_protocolVersion = 0;
+        m_securityType = RfbProtocol.SECURITY_TYPE_INVALID;
+        m_password = null;
+        m_allowPlaintext = true;
+        m_pins = MEMORY_PINS;
+        m_encrypted = false;
+        m_tlsResumed = false;
+        m_phaseNanos = new long [PHASE_NAMES.length];
+    }
+
+    /**
+     * Sets the password for VNC Authentication, on its own or inside TLS
+     */
+    public void setPassword(String password) {
+        m_password = (password == null || password.length() == 0) ? null : password;
+    }
+
+    /**
+     * Sets whether to fall back on security types that don't encrypt the
+     * session when the server doesn't offer VeNCrypt (the default is to)
+     */
+    public void setAllowPlaintext(boolean allow) {
+        m_allowPlaintext = allow;
+    }
+
+    /**
+     * Sets where to keep the TLS certificate pins; by default they only
+     * last as long as the process
+     */
+    public void setPinStore(RfbTls.PinStore pins) {
+        m_pins = pins;
+    }
+
+    public Socket getSocket() {
+        return m_sock;
+    }
+
+    /** The stream to read server messages from once the handshake is done */
+    public DataInputStream getInput() {
+        return m_input;
+    }
+
+    /** The stream to send client messages to once the handshake is done */
+    public DataOutputStream getOutput() {
+        return m_output;
+    }
+
+    public short getProtocolVersion() {
+        return m_protocolVersion;
+    }
+
+    public boolean isEncrypted() {
+        return m_encrypted;
+    }
+
+    /** Whether the TLS handshake resumed a session cached from an earlier connection */
+    public boolean isTlsResumed() {
+        return m_tlsResumed;
+    }
+
+    /**
+     * Gets the time spent in a phase of the last run()
+     * @param phase - one of the PHASE_ constants
+     */
+    public long getPhaseNanos(int phase) {
+        return m_phaseNanos[phase];
+    }
+
+    /**
+     * Describes the time spent in each phase, e.g. for showing after
+     * connecting
+     */
+    public String describeTimings() {
+        StringBuilder s = new StringBuilder("Handshake:");
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            if (i == PHASE_TLS && !m_encrypted) {
+                continue;
+            }
+            s.append(' ').append(PHASE_NAMES[i]);
+            s.append(String.format(Locale.US, " %.1f ms", m_phaseNanos[i] / 1e6));
+            if (i == PHASE_TLS && m_tlsResumed) {
+                s.append(" (resumed)");
+            }
+            s.append(i + 1 < PHASE_NAMES.length ? "," : "");
+        }
+        return s.toString();
+    }
+
+    /**
+     * Runs the handshake through to the ServerInit message
+     * @param shared - ask the server to leave other clients connected
+     * @return the ServerInit information
+     * @throws IOException on a socket error or when the server refuses us,
+     *         in which case the message holds the reason
+     */
+    public ServerInit run(boolean shared) throws IOException {
+        m_phaseStart = System.nanoTime();
+        readProtocolVersion();
+        endPhase(PHASE_VERSION);
+        negotiateSecurity();
+        ServerInit serverInit = initialize(shared);
+        endPhase(PHASE_INITIALIZATION);
+        return serverInit;
+    }
+
+    /**
+     * Adds the time since the last call to the given phase
+     */
+    private void endPhase(int phase) {
+        long now = System.nanoTime();
+        m_phaseNanos[phase] += now - m_phaseStart;
+        m_phaseStart = now;
+    }
+
+    private void progress(String message) {
+        if (m_listener != null) {
+            m_listener.onProgress(message);
+        }
+    }
+
+    /**
+     * Reads the initial handshake message from the RFB server
+     * ("RFB 003.00x\n" where 'x' is 3, 7, or 8) and echoes it back
+     * (protocol allows selecting a lower version, but we will just use
+     * the highest provided by the server)
+     */
+    private void readProtocolVersion() throws IOException {
+        m_input.readFully(m_data, 0, 12);
+        //Uncomment line below to force test protocol 3.3
+        //(assumes we were getting 3.8)
+        //m_data[10] = (byte) (m_data[10] - 5);
+        m_protocolVersion = (short) ((0xFF & ((int) m_data[10])) - 0x30);
+        progress("Protocol Version: " + Short.toString(m_protocolVersion));
+        m_output.write(m_data, 0, 12);
+    }
+
+    /**
+     * Agrees on a security type with the server and carries it out
+     */
+    private void negotiateSecurity() throws IOException {
+        // Version 3.7 onwards - The server sends a single byte with the
+        // number of security types supported, followed by the list
+        if (m_protocolVersion >= 7) {
+            int numberSecurityTypes = m_input.readUnsignedByte();
+            progress("numberSecurityTypes = " + Integer.toString(numberSecurityTypes));
+            // A number of security types value of 0 means failure,
+            // and the server will be sending us a reason string
+            if (numberSecurityTypes == 0) {
+                throw new IOException(readFailureReason());
+            }
+            if (numberSecurityTypes > m_data.length) {
+                m_data = new byte [numberSecurityTypes];
+            }
+            m_input.readFully(m_data, 0, numberSecurityTypes);
+            m_securityType = chooseSecurityType(numberSecurityTypes);
+            m_output.writeByte(m_securityType);
+        }
+        // Version 3.3 - The server decides the security type
+        // and sends a single 4 byte word.
+        else {
+            int securityType = m_input.readInt();
+            progress("securityType = " + Integer.toString(securityType));
+            // A type of 0 indicates failure, and the server will
+            // be sending a reason string
+            if (securityType == RfbProtocol.SECURITY_TYPE_INVALID) {
+                throw new IOException(readFailureReason());
+            }
+            m_securityType = securityType;
+        }
+
+        endPhase(PHASE_SECURITY);
+
+        // No Authentication, No Encryption
+        if (m_securityType == RfbProtocol.SECURITY_TYPE_NONE) {
+            checkPlaintextAllowed();
+            // The protocol continues with the SecurityResult message
+            if (m_protocolVersion >= 8) {
+                readSecurityResult();
+            }
+            // Otherwise the protocol passes to the initialization phase
+        }
+        // VNC Authentication, No Encryption
+        else if (m_securityType == RfbProtocol.SECURITY_TYPE_VNC_AUTHENTICATION) {
+            checkPlaintextAllowed();
+            authenticate();
+            readSecurityResult();
+        }
+        else if (m_securityType == RfbProtocol.SECURITY_TYPE_VENCRYPT) {
+            runVeNCrypt();
+        }
+        else {
+            throw new IOException("Error: Security type " + Integer.toString(m_securityType) + " not supported");
+        }
+        endPhase(PHASE_AUTHENTICATION);
+    }
+
+    /**
+     * Refuses to go on unencrypted when that isn't allowed (for version
+     * 3.3, where the server picks the security type)
+     */
+    private void checkPlaintextAllowed() throws IOException {
+        if (!m_allowPlaintext) {
+            throw new IOException("Error: Server does not offer encryption");
+        }
+    }
+
+    /**
+     * Carries out VeNCrypt: agree on version 0.2 and a sub-type, start
+     * TLS, then run the sub-type's authentication inside it.  Every
+     * message after the TLS handshake goes over TLS.
+     */
+    private void runVeNCrypt() throws IOException {
+        int major = m_input.readUnsignedByte();
+        int minor = m_input.readUnsignedByte();
+        if (major == 0 && minor < 2) {
+            throw new IOException("Error: VeNCrypt version " + Integer.toString(major) + "."
+                    + Integer.toString(minor) + " not supported");
+        }
+        // One write, so Nagle's algorithm doesn't hold back the second byte
+        m_output.write(new byte [] { 0, 2 });
+        if (m_input.readUnsignedByte() != 0) {
+            throw new IOException("Error: Server refused VeNCrypt version 0.2");
+        }
+
+        int numberSubTypes = m_input.readUnsignedByte();
+        int [] subTypes = new int [numberSubTypes];
+        for (int i = 0; i < numberSubTypes; i++) {
+            subTypes[i] = m_input.readInt();
+        }
+        int subType = chooseVeNCryptSubType(subTypes);
+        progress("VeNCrypt sub-type = " + Integer.toString(subType));
+        RfbProtocol.putU32(m_data, 0, subType);
+        m_output.write(m_data, 0, 4);
+        // The server accepts with a non-zero byte, then TLS starts
+        if (m_input.readUnsignedByte() == 0) {
+            throw new IOException("Error: Server refused VeNCrypt sub-type " + Integer.toString(subType));
+        }
+        endPhase(PHASE_SECURITY);
+
+        startTls(subType == RfbProtocol.VENCRYPT_TLS_NONE || subType == RfbProtocol.VENCRYPT_TLS_VNC);
+        endPhase(PHASE_TLS);
+
+        if (subType == RfbProtocol.VENCRYPT_TLS_VNC || subType == RfbProtocol.VENCRYPT_X509_VNC) {
+            authenticate();
+        }
+        readSecurityResult();
+    }
+
+    /**
+     * Picks a VeNCrypt sub-type, preferring a certificate to anonymous
+     * TLS (which doesn't stop a man in the middle).  With a password the
+     * sub-types using VNC Authentication come first, without one they
+     * can't be used.
+     */
+    private int chooseVeNCryptSubType(int [] subTypes) throws IOException {
+        int [] preferred;
+        if (m_password != null) {
+            preferred = new int [] { RfbProtocol.VENCRYPT_X509_VNC, RfbProtocol.VENCRYPT_X509_NONE,
+                                     RfbProtocol.VENCRYPT_TLS_VNC, RfbProtocol.VENCRYPT_TLS_NONE };
+        }
+        else {
+            preferred = new int [] { RfbProtocol.VENCRYPT_X509_NONE, RfbProtocol.VENCRYPT_TLS_NONE };
+        }
+        for (int p = 0; p < preferred.length; p++) {
+            for (int i = 0; i < subTypes.length; i++) {
+                if (subTypes[i] == preferred[p]) {
+                    return preferred[p];
+                }
+            }
+        }
+        for (int i = 0; i < subTypes.length; i++) {
+            if (subTypes[i] == RfbProtocol.VENCRYPT_X509_VNC || subTypes[i] == RfbProtocol.VENCRYPT_TLS_VNC) {
+                throw new IOException("Error: Server requires a password");
+            }
+        }
+        throw new IOException("Error: No VeNCrypt sub-types supported");
+    }
+
+    /**
+     * Runs the TLS handshake and carries on over the TLS socket
+     */
+    private void startTls(boolean anonymous) throws IOException {
+        RfbTls.Connection connection = RfbTls.startClient(m_sock, anonymous, m_pins);
+        SSLSocket sslSock = connection.socket;
+        m_sock = sslSock;
+        m_input = new DataInputStream(sslSock.getInputStream());
+        m_output = new DataOutputStream(sslSock.getOutputStream());
+        m_encrypted = true;
+        m_tlsResumed = connection.resumed;
+        String fingerprint = RfbTls.getPeerFingerprint(sslSock);
+        progress(sslSock.getSession().getProtocol()
+                + (m_tlsResumed ? ", resumed" : "")
+                + (fingerprint != null ? ", certificate " + fingerprint : ", anonymous"));
+    }
+
+    /**
+     * Carries out VNC Authentication: the server sends a random 16-byte
+     * challenge, which we encrypt with DES using the password as the key
+     * and send back.  The SecurityResult message follows.
+     */
+    private void authenticate() throws IOException {
+        if (m_password == null) {
+            throw new IOException("Error: Server requires a password");
+        }
+        byte [] challenge = new byte [RfbProtocol.VNC_AUTH_CHALLENGE_LENGTH];
+        m_input.readFully(challenge);
+        m_output.write(encryptChallenge(challenge, m_password));
+    }
+
+    /**
+     * Encrypts a VNC Authentication challenge.  The key is the first 8
+     * characters of the password, padded with zeros, with the bits of
+     * each byte reversed (a quirk of the original implementation).
+     */
+    static byte [] encryptChallenge(byte [] challenge, String password) throws IOException {
+        byte [] key = new byte [8];
+        byte [] passwordBytes;
+        try {
+            passwordBytes = password.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException("Error: " + e.getMessage());
+        }
+        for (int i = 0; i < key.length && i < passwordBytes.length; i++) {
+            key[i] = (byte) (Integer.reverse(0xFF & passwordBytes[i]) >>> 24);
+        }
+        try {
+            Cipher des = Cipher.getInstance("DES/ECB/NoPadding");
+            des.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "DES"));
+            return des.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error: VNC Authentication is not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Picks one of the security types the server listed in m_data
+     * (pre-defined choice order)
+     */
+    private int chooseSecurityType(int numberSecurityTypes) throws IOException {
+        boolean secTypeInvalid = false;
+        boolean secTypeNone = false;
+        boolean secTypeVncAuth = false;
+        boolean secTypeVeNCrypt = false;
+        for (int i = 0; i < numberSecurityTypes; i++) {
+            switch (0xFF & m_data[i]) {
+            case RfbProtocol.SECURITY_TYPE_INVALID:
+                // Invalid value (shouldn't be reached... I think)
+                secTypeInvalid = true;
+                break;
+            case RfbProtocol.SECURITY_TYPE_NONE:
+                // No security type
+                secTypeNone = true;
+                break;
+            case RfbProtocol.SECURITY_TYPE_VNC_AUTHENTICATION:
+                secTypeVncAuth = true;
+                break;
+            case RfbProtocol.SECURITY_TYPE_VENCRYPT:
+                secTypeVeNCrypt = true;
+                break;
+            default:
+                // Not supported
+                break;
+            }
+        }
+        if (secTypeVeNCrypt) {
+            return RfbProtocol.SECURITY_TYPE_VENCRYPT;
+        }
+        else if ((secTypeVncAuth || secTypeNone) && !m_allowPlaintext) {
+            throw new IOException("Error: Server does not offer encryption");
+        }
+        else if (secTypeVncAuth && (m_password != null || !secTypeNone)) {
+            return RfbProtocol.SECURITY_TYPE_VNC_AUTHENTICATION;
+        }
+        else if (secTypeNone) {
+            return RfbProtocol.SECURITY_TYPE_NONE;
+        }
+        else if (secTypeInvalid) {
+            throw new IOException("Server reported Invalid security type option");
+        }
+        else {
+            throw new IOException("Error: No security options supported");
+        }
+    }
+
+    /**
+     * Reads the security result from the server
+     */
+    private void readSecurityResult() throws IOException {
+        int securityResult = m_input.readInt();
+        progress("securityResult = " + Integer.toString(securityResult));
+        if (securityResult == RfbProtocol.SECURITY_RESULT_SUCCESSFUL) {
+            return;
+        }
+        else if (securityResult == RfbProtocol.SECURITY_RESULT_FAILED && m_protocolVersion >= 8) {
+            // The server sends a string describing the reason for
+            // the failure, then closes the connection
+            throw new IOException(readFailureReason());
+        }
+        throw new IOException("Error... Security Result = " + Integer.toString(securityResult));
+    }
+
+    /**
+     * Sends the ClientInit message and reads the ServerInit message
+     */
+    private ServerInit initialize(boolean shared) throws IOException {
+        m_output.writeByte(shared ? 1 : 0);
+        m_input.readFully(m_data, 0, 24);
+        // Grab the framebuffer width and height and the pixel format's
+        // bits-per-pixel
+        int fbWidth = RfbProtocol.getU16(m_data, 0);
+        int fbHeight = RfbProtocol.getU16(m_data, 2);
+        int bitsPerPixel = 0xFF & m_data[4];
+        // Grab the name length, then the name
+        int nameLength = RfbProtocol.getU32(m_data, 20);
+        String name = readString(nameLength);
+        return new ServerInit(fbWidth, fbHeight, bitsPerPixel, name);
+    }
+
+    /**
+     * There was a failure and the server is sending a reason string,
+     * prefixed by a 4 byte word that tells how long it will be.
+     */
+    private String readFailureReason() throws IOException {
+        return readString(m_input.readInt());
+    }
+
+    private String readString(int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Error: Bad string length " + Integer.toString(length));
+        }
+        byte [] bytes = new byte [length];
+        m_input.readFully(bytes);
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            s.append((char) (0xFF & bytes[i]));
+        }
+        return s.toString();
+    }
+
+}
@@ -0,0 +1,314 @@
+package com.joelsoncarl.androidremote;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An input macro compiled down to ready-to-send bytes.  A definition is a
+ * list of commands separated by ';' or new lines:
+ *
+ *   key <keys>          press and release, e.g. "key space" or "key ctrl+f"
+ *   keydown <key>       press only
+ *   keyup <key>         release only
+ *   move <x> <y>        move the pointer
+ *   click [left|right] [<x> <y>]   click, by default where the pointer is
+ *   wait <ms>           pause before sending the rest, up to 60000
+ *
+ * Coordinates may be "centre" (or "center") for the middle of the screen,
+ * and "click centre" is short for "click centre centre".  The pointer
+ * starts at the centre.
+ * Keys are single characters, names such as "enter", "f11" or "play", or
+ * a raw keysym written as "0x...".  In a combination a "+" right after
+ * the separator is the plus key, so "key ctrl++" presses ctrl and plus.
+ * The waits of a macro may add up to at most MAX_TOTAL_WAIT_MS.
+ *
+ * Every PointerEvent/KeyEvent between two waits goes into one segment of
+ * a single byte array, so running a macro takes one socket write per
+ * segment.  Coordinates depend on the framebuffer size, so a macro is
+ * compiled for one connection.
+ */
+public class RfbMacro {
+
+    /** The longest a single wait may be */
+    private static final int MAX_WAIT_MS = 60000;
+    /** The longest all the waits of a macro may add up to */
+    public static final int MAX_TOTAL_WAIT_MS = 120000;
+
+    /** All the messages of the macro back to back */
+    private final byte [] m_block;
+    /** Where each segment of m_block ends */
+    private final int [] m_segmentEnds;
+    /** How long to wait after each segment is sent */
+    private final int [] m_gapsMs;
+
+    private RfbMacro(byte [] block, int [] segmentEnds, int [] gapsMs) {
+        m_block = block;
+        m_segmentEnds = segmentEnds;
+        m_gapsMs = gapsMs;
+    }
+
+    /** X Window System keysyms for the named keys */
+    private static final Map<String, Integer> KEYSYMS = new HashMap<String, Integer>();
+    static {
+        KEYSYMS.put("space", 0x0020);
+        KEYSYMS.put("backspace", 0xFF08);
+        KEYSYMS.put("tab", 0xFF09);
+        KEYSYMS.put("enter", 0xFF0D);
+        KEYSYMS.put("return", 0xFF0D);
+        KEYSYMS.put("escape", 0xFF1B);
+        KEYSYMS.put("esc", 0xFF1B);
+        KEYSYMS.put("delete", 0xFFFF);
+        KEYSYMS.put("home", 0xFF50);
+        KEYSYMS.put("left", 0xFF51);
+        KEYSYMS.put("up", 0xFF52);
+        KEYSYMS.put("right", 0xFF53);
+        KEYSYMS.put("down", 0xFF54);
+        KEYSYMS.put("pageup", 0xFF55);
+        KEYSYMS.put("pagedown", 0xFF56);
+        KEYSYMS.put("end", 0xFF57);
+        KEYSYMS.put("shift", 0xFFE1);
+        KEYSYMS.put("ctrl", 0xFFE3);
+        KEYSYMS.put("alt", 0xFFE9);
+        KEYSYMS.put("super", 0xFFEB);
+        for (int i = 1; i <= 12; i++) {
+            KEYSYMS.put("f" + i, 0xFFBE + i - 1);
+        }
+        // Media keys (XF86Audio*)
+        KEYSYMS.put("voldown", 0x1008FF11);
+        KEYSYMS.put("mute", 0x1008FF12);
+        KEYSYMS.put("volup", 0x1008FF13);
+        KEYSYMS.put("play", 0x1008FF14);
+        KEYSYMS.put("stop", 0x1008FF15);
+        KEYSYMS.put("prev", 0x1008FF16);
+        KEYSYMS.put("next", 0x1008FF17);
+    }
+
+    /**
+     * Compiles a macro definition
+     * @param definition - the commands, see the class comment
+     * @param fbWidth - framebuffer width of the connection it will run on
+     * @param fbHeight - framebuffer height of the connection it will run on
+     * @throws IllegalArgumentException if the definition can't be parsed
+     */
+    public static RfbMacro compile(String definition, int fbWidth, int fbHeight) {
+        byte [] block = new byte [64];
+        int length = 0;
+        int [] segmentEnds = new int [4];
+        int [] gapsMs = new int [4];
+        int segments = 0;
+        int pointerX = fbWidth / 2;
+        int pointerY = fbHeight / 2;
+        int totalWaitMs = 0;
+
+        String [] commands = definition.split("[;\n]");
+        for (int c = 0; c < commands.length; c++) {
+            String [] words = commands[c].trim().split("\\s+");
+            String command = words[0].toLowerCase(Locale.US);
+            if (command.length() == 0) {
+                continue;
+            }
+            // The longest command is a key combination, pressed and released,
+            // which has no more keys than its argument has characters
+            int needed = 2 * RfbProtocol.KEY_EVENT_LENGTH * (words.length > 1 ? words[1].length() : 1);
+            if (block.length - length < needed) {
+                block = Arrays.copyOf(block, Math.max(block.length * 2, length + needed));
+            }
+
+            if (command.equals("wait")) {
+                expectWords(words, 2);
+                int waitMs = parseNumber(words[1], 0, MAX_WAIT_MS);
+                totalWaitMs += waitMs;
+                if (totalWaitMs > MAX_TOTAL_WAIT_MS) {
+                    throw new IllegalArgumentException("Waits add up to more than "
+                            + Integer.toString(MAX_TOTAL_WAIT_MS) + " ms");
+                }
+                if (segments == segmentEnds.length) {
+                    segmentEnds = Arrays.copyOf(segmentEnds, segments * 2);
+                    gapsMs = Arrays.copyOf(gapsMs, segments * 2);
+                }
+                // Back-to-back waits just add up
+                if (segments > 0 && segmentEnds[segments - 1] == length) {
+                    gapsMs[segments - 1] += waitMs;
+                }
+                else {
+                    segmentEnds[segments] = length;
+                    gapsMs[segments] = waitMs;
+                    segments++;
+                }
+            }
+            else if (command.equals("key")) {
+                expectWords(words, 2);
+                int [] keysyms = parseCombination(words[1]);
+                // Press in order, release in reverse so modifiers wrap the key
+                for (int i = 0; i < keysyms.length; i++) {
+                    length += RfbProtocol.encodeKeyEvent(block, length, keysyms[i], true);
+                }
+                for (int i = keysyms.length - 1; i >= 0; i--) {
+                    length += RfbProtocol.encodeKeyEvent(block, length, keysyms[i], false);
+                }
+            }
+            else if (command.equals("keydown") || command.equals("keyup")) {
+                expectWords(words, 2);
+                length += RfbProtocol.encodeKeyEvent(block, length, parseKey(words[1]), command.equals("keydown"));
+            }
+            else if (command.equals("move")) {
+                expectWords(words, 3);
+                pointerX = parseCoordinate(words[1], fbWidth);
+                pointerY = parseCoordinate(words[2], fbHeight);
+                length += RfbProtocol.encodePointerEvent(block, length, 0, pointerX, pointerY);
+            }
+            else if (command.equals("click")) {
+                int buttonMask = RfbProtocol.LEFT_BUTTON_MASK;
+                int next = 1;
+                if (words.length > next && (words[next].equalsIgnoreCase("left") || words[next].equalsIgnoreCase("right"))) {
+                    if (words[next].equalsIgnoreCase("right")) {
+                        buttonMask = RfbProtocol.RIGHT_BUTTON_MASK;
+                    }
+                    next++;
+                }
+                if (words.length == next + 2) {
+                    pointerX = parseCoordinate(words[next], fbWidth);
+                    pointerY = parseCoordinate(words[next + 1], fbHeight);
+                }
+                else if (words.length == next + 1
+                        && (words[next].equalsIgnoreCase("centre") || words[next].equalsIgnoreCase("center"))) {
+                    pointerX = fbWidth / 2;
+                    pointerY = fbHeight / 2;
+                }
+                else if (words.length != next) {
+                    throw new IllegalArgumentException("Bad click: " + commands[c].trim());
+                }
+                length += RfbProtocol.encodePointerEvent(block, length, buttonMask, pointerX, pointerY);
+                length += RfbProtocol.encodePointerEvent(block, length, 0, pointerX, pointerY);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown macro command: " + command);
+            }
+        }
+
+        // Close off the last segment unless a wait already did
+        if (segments == 0 || segmentEnds[segments - 1] != length) {
+            if (segments == segmentEnds.length) {
+                segmentEnds = Arrays.copyOf(segmentEnds, segments + 1);
+                gapsMs = Arrays.copyOf(gapsMs, segments + 1);
+            }
+            segmentEnds[segments] = length;
+            gapsMs[segments] = 0;
+            segments++;
+        }
+        return new RfbMacro(Arrays.copyOf(block, length),
+                Arrays.copyOf(segmentEnds, segments), Arrays.copyOf(gapsMs, segments));
+    }
+
+    /**
+     * Sends the macro, one write per segment, sleeping for the gaps in
+     * between.  Each write is synchronized on the stream so that other
+     * threads sending on it don't land in the middle of a segment.
+     * Blocks, so call it from a background thread.
+     */
+    public void run(OutputStream out) throws IOException, InterruptedException {
+        int start = 0;
+        for (int i = 0; i < m_segmentEnds.length; i++) {
+            if (m_segmentEnds[i] > start) {
+                synchronized (out) {
+                    out.write(m_block, start, m_segmentEnds[i] - start);
+                    out.flush();
+                }
+            }
+            start = m_segmentEnds[i];
+            if (m_gapsMs[i] > 0 && i + 1 < m_segmentEnds.length) {
+                Thread.sleep(m_gapsMs[i]);
+            }
+        }
+    }
+
+    /** Number of bytes the macro sends */
+    public int getLength() {
+        return m_block.length;
+    }
+
+    private static void expectWords(String [] words, int count) {
+        if (words.length != count) {
+            throw new IllegalArgumentException("Bad " + words[0] + ": expected "
+                    + Integer.toString(count - 1) + " argument(s)");
+        }
+    }
+
+    /**
+     * Parses keys joined by "+", e.g. "ctrl+alt+delete".  A key name
+     * starting with "+" is the plus key, so "+" and "ctrl++" work.
+     */
+    private static int [] parseCombination(String combination) {
+        int [] keysyms = new int [combination.length()];
+        int keys = 0;
+        int i = 0;
+        while (true) {
+            int end;
+            if (i < combination.length() && combination.charAt(i) == '+') {
+                end = i + 1;
+            }
+            else {
+                end = combination.indexOf('+', i);
+                if (end < 0) {
+                    end = combination.length();
+                }
+            }
+            if (end == i) {
+                throw new IllegalArgumentException("Missing key in " + combination);
+            }
+            keysyms[keys++] = parseKey(combination.substring(i, end));
+            if (end == combination.length()) {
+                break;
+            }
+            if (combination.charAt(end) != '+') {
+                throw new IllegalArgumentException("Bad key combination: " + combination);
+            }
+            i = end + 1;
+        }
+        return Arrays.copyOf(keysyms, keys);
+    }
+
+    private static int parseKey(String key) {
+        // Latin-1 characters are their own keysyms
+        if (key.length() == 1 && key.charAt(0) >= 0x20 && key.charAt(0) <= 0xFF) {
+            return key.charAt(0);
+        }
+        Integer keysym = KEYSYMS.get(key.toLowerCase(Locale.US));
+        if (keysym != null) {
+            return keysym.intValue();
+        }
+        if (key.toLowerCase(Locale.US).startsWith("0x") && key.length() > 2) {
+            try {
+                return (int) Long.parseLong(key.substring(2), 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad keysym: " + key);
+            }
+        }
+        throw new IllegalArgumentException("Unknown key: " + key);
+    }
+
+    private static int parseCoordinate(String word, int size) {
+        if (word.equalsIgnoreCase("centre") || word.equalsIgnoreCase("center")) {
+            return size / 2;
+        }
+        return parseNumber(word, 0, Math.max(0, size - 1));
+    }
+
+    private static int parseNumber(String word, int min, int max) {
+        int n;
+        try {
+            n = Integer.parseInt(word);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number: " + word);
+        }
+        if (n < min || n > max) {
+            throw new IllegalArgumentException(word + " is out of range");
+        }
+        return n;
+    }
+
+}
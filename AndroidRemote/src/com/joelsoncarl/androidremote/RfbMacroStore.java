@@ -0,0 +1,72 @@
+package com.joelsoncarl.androidremote;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Keeps the macro definitions for each server (by IP Address and Port
+ * Number) in the app's shared preferences.  Definitions are stored as
+ * text and compiled by RfbClient once connected, see RfbMacro.
+ */
+public class RfbMacroStore {
+
+    /** Prefix of the shared preferences file holding a server's macros */
+    private static final String PREFS_PREFIX = "macros_";
+    /** Shared preferences file recording which servers have been given the defaults */
+    private static final String SEEDED_PREFS = "macro_servers";
+
+    /** Macros a server starts out with */
+    private static final String [][] DEFAULT_MACROS = {
+        { "Play/Pause", "key play" },
+        { "Fullscreen", "key f" },
+        { "Click & Space", "click centre; wait 100; key space" },
+    };
+
+    private Context m_context;
+
+    RfbMacroStore(Context context) {
+        m_context = context;
+    }
+
+    private SharedPreferences prefs(String server) {
+        return m_context.getSharedPreferences(PREFS_PREFIX + server, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Gets the macros saved for a server, sorted by name.  The first time
+     * a server is seen it is given the default macros.
+     * @param server - "ip:port" of the server
+     * @return map of macro name to definition
+     */
+    public Map<String, String> getMacros(String server) {
+        SharedPreferences prefs = prefs(server);
+        SharedPreferences seeded = m_context.getSharedPreferences(SEEDED_PREFS, Context.MODE_PRIVATE);
+        if (!seeded.getBoolean(server, false)) {
+            SharedPreferences.Editor editor = prefs.edit();
+            for (int i = 0; i < DEFAULT_MACROS.length; i++) {
+                editor.putString(DEFAULT_MACROS[i][0], DEFAULT_MACROS[i][1]);
+            }
+            editor.commit();
+            seeded.edit().putBoolean(server, true).commit();
+        }
+        Map<String, String> macros = new TreeMap<String, String>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getValue() instanceof String) {
+                macros.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        return macros;
+    }
+
+    public void saveMacro(String server, String name, String definition) {
+        prefs(server).edit().putString(name, definition).commit();
+    }
+
+    public void deleteMacro(String server, String name) {
+        prefs(server).edit().remove(name).commit();
+    }
+
+}
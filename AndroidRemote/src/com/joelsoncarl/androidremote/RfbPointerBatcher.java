@@ -0,0 +1,166 @@
+package com.joelsoncarl.androidremote;
+
+/**
+ * Turns trackpad movement and two-finger scrolling into PointerEvents,
+ * collapsing however many touch events arrive between two frames into
+ * at most one pointer move and one burst of wheel clicks.
+ *
+ * Movement is accelerated by finger speed: slow movement maps a touch
+ * pixel to about a framebuffer pixel for precise pointing, and a fast
+ * swipe covers more of the screen.  Scrolling follows the content, so
+ * dragging two fingers up scrolls down, like scrolling a list on the
+ * phone.  RFB has no scroll message; each wheel click is a press and
+ * release of button 4 (up), 5 (down), 6 (left) or 7 (right).
+ *
+ * Only used from the UI thread.
+ */
+public class RfbPointerBatcher {
+
+    /** Finger speeds (touch pixels per millisecond) where acceleration starts and stops rising */
+    private static final double SLOW_SPEED = 0.2;
+    private static final double FAST_SPEED = 2.0;
+    /** Gain at and below SLOW_SPEED and at and above FAST_SPEED */
+    private static final double MIN_GAIN = 1.0;
+    private static final double MAX_GAIN = 4.0;
+    /** Weight of the newest sample in the smoothed speed */
+    private static final double SPEED_SMOOTHING = 0.5;
+
+    /** Touch pixels of scrolling per wheel click */
+    private static final double SCROLL_STEP = 40.0;
+    /** The most wheel clicks sent per axis per frame */
+    private static final int MAX_CLICKS_PER_FRAME = 8;
+    /** The most scrolling held over to later frames, in clicks */
+    private static final int MAX_PENDING_CLICKS = 3 * MAX_CLICKS_PER_FRAME;
+
+    /** The most bytes drain() writes: a move, then a press and release per click */
+    public static final int MAX_BATCH_LENGTH =
+        RfbProtocol.POINTER_EVENT_LENGTH * (1 + 2 * 2 * MAX_CLICKS_PER_FRAME);
+
+    private final int m_fbWidth, m_fbHeight;
+    /** Pointer position, with the fraction of a pixel movement has left over */
+    private double m_x, m_y;
+    /** The position last sent */
+    private int m_sentX, m_sentY;
+    private double m_speed;
+    /** Scrolling not yet sent, in touch pixels */
+    private double m_scrollX, m_scrollY;
+
+    /**
+     * Constructor for RfbPointerBatcher; the pointer starts at the centre
+     * @param fbWidth - framebuffer width of the connection
+     * @param fbHeight - framebuffer height of the connection
+     */
+    public RfbPointerBatcher(int fbWidth, int fbHeight) {
+        m_fbWidth = fbWidth;
+        m_fbHeight = fbHeight;
+        m_x = fbWidth / 2;
+        m_y = fbHeight / 2;
+        m_sentX = (int) m_x;
+        m_sentY = (int) m_y;
+        m_speed = 0;
+        m_scrollX = 0;
+        m_scrollY = 0;
+    }
+
+    public int getX() {
+        return (int) m_x;
+    }
+
+    public int getY() {
+        return (int) m_y;
+    }
+
+    /**
+     * Adds a finger movement
+     * @param dx - touch pixels moved right
+     * @param dy - touch pixels moved down
+     * @param dtMs - time since the previous movement
+     */
+    public void move(float dx, float dy, long dtMs) {
+        double distance = Math.sqrt((double) dx * dx + (double) dy * dy);
+        double speed = distance / Math.max(1, dtMs);
+        m_speed += SPEED_SMOOTHING * (speed - m_speed);
+        double gain;
+        if (m_speed <= SLOW_SPEED) {
+            gain = MIN_GAIN;
+        }
+        else if (m_speed >= FAST_SPEED) {
+            gain = MAX_GAIN;
+        }
+        else {
+            gain = MIN_GAIN + (MAX_GAIN - MIN_GAIN) * (m_speed - SLOW_SPEED) / (FAST_SPEED - SLOW_SPEED);
+        }
+        m_x = Math.max(0, Math.min(m_fbWidth - 1, m_x + dx * gain));
+        m_y = Math.max(0, Math.min(m_fbHeight - 1, m_y + dy * gain));
+    }
+
+    /**
+     * Forgets the finger speed, for when a new touch starts
+     */
+    public void resetSpeed() {
+        m_speed = 0;
+    }
+
+    /**
+     * Adds a two-finger scroll
+     * @param dx - touch pixels the fingers moved right
+     * @param dy - touch pixels the fingers moved down
+     */
+    public void scroll(float dx, float dy) {
+        double limit = MAX_PENDING_CLICKS * SCROLL_STEP;
+        m_scrollX = Math.max(-limit, Math.min(limit, m_scrollX + dx));
+        m_scrollY = Math.max(-limit, Math.min(limit, m_scrollY + dy));
+    }
+
+    /**
+     * Whether scrolling is still waiting after drain() has hit its limit
+     */
+    public boolean hasPendingScroll() {
+        return Math.abs(m_scrollX) >= SCROLL_STEP || Math.abs(m_scrollY) >= SCROLL_STEP;
+    }
+
+    /**
+     * Writes the PointerEvents for everything added since the last call:
+     * a move if the pointer has moved, then the wheel clicks
+     * @param buf - destination buffer, at least MAX_BATCH_LENGTH long
+     * @param buttonMask - buttons 1 to 3 held down at the moment
+     * @return the number of bytes written, 0 if there is nothing to send
+     */
+    public int drain(byte [] buf, int buttonMask) {
+        int length = 0;
+        int x = getX();
+        int y = getY();
+        if (x != m_sentX || y != m_sentY) {
+            length += RfbProtocol.encodePointerEvent(buf, length, buttonMask, x, y);
+            m_sentX = x;
+            m_sentY = y;
+        }
+
+        // Fingers moving up scroll down, fingers moving left scroll right
+        int clicks = takeClicks(m_scrollY);
+        m_scrollY -= clicks * SCROLL_STEP;
+        length += encodeClicks(buf, length, buttonMask, x, y,
+                clicks < 0 ? RfbProtocol.WHEEL_DOWN_MASK : RfbProtocol.WHEEL_UP_MASK, Math.abs(clicks));
+        clicks = takeClicks(m_scrollX);
+        m_scrollX -= clicks * SCROLL_STEP;
+        length += encodeClicks(buf, length, buttonMask, x, y,
+                clicks < 0 ? RfbProtocol.WHEEL_RIGHT_MASK : RfbProtocol.WHEEL_LEFT_MASK, Math.abs(clicks));
+        return length;
+    }
+
+    /** Whole wheel clicks in a scroll distance, up to the per frame limit */
+    private static int takeClicks(double scroll) {
+        int clicks = (int) (scroll / SCROLL_STEP);
+        return Math.max(-MAX_CLICKS_PER_FRAME, Math.min(MAX_CLICKS_PER_FRAME, clicks));
+    }
+
+    private static int encodeClicks(byte [] buf, int off, int buttonMask, int x, int y, int wheelMask, int clicks) {
+        int length = 0;
+        for (int i = 0; i < clicks; i++) {
+            length += RfbProtocol.encodePointerEvent(buf, off + length, buttonMask | wheelMask, x, y);
+            length += RfbProtocol.encodePointerEvent(buf, off + length, buttonMask, x, y);
+        }
+        return length;
+    }
+
+}
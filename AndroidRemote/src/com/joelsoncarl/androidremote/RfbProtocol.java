@@ -0,0 +1,213 @@
+package com.joelsoncarl.androidremote;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Constants and message encoders for the RFB Protocol.  Nothing in here
+ * depends on Android, so it can be shared between the app and the
+ * command-line tools.  Message layouts follow
+ * http://www.realvnc.com/docs/rfbproto.pdf
+ */
+public final class RfbProtocol {
+
+    /** Client to server message types */
+    public static final byte SET_PIXEL_FORMAT_TYPE = 0x00;
+    public static final byte SET_ENCODINGS_TYPE = 0x02;
+    public static final byte FRAMEBUFFER_UPDATE_REQUEST_TYPE = 0x03;
+    public static final byte KEY_EVENT_TYPE = 0x04;
+    public static final byte POINTER_EVENT_TYPE = 0x05;
+
+    /** Server to client message types */
+    public static final int FRAMEBUFFER_UPDATE = 0;
+    public static final int SET_COLOUR_MAP_ENTRIES = 1;
+    public static final int BELL = 2;
+    public static final int SERVER_CUT_TEXT = 3;
+
+    /** Security Type Constants */
+    public static final int SECURITY_TYPE_INVALID = 0;
+    public static final int SECURITY_TYPE_NONE = 1;
+    public static final int SECURITY_TYPE_VNC_AUTHENTICATION = 2;
+    public static final int SECURITY_TYPE_VENCRYPT = 19;
+
+    /** VeNCrypt sub-types: anonymous TLS or X.509 TLS, then no or VNC authentication */
+    public static final int VENCRYPT_TLS_NONE = 257;
+    public static final int VENCRYPT_TLS_VNC = 258;
+    public static final int VENCRYPT_X509_NONE = 260;
+    public static final int VENCRYPT_X509_VNC = 261;
+
+    /** Security Result Constants */
+    public static final int SECURITY_RESULT_SUCCESSFUL = 0;
+    public static final int SECURITY_RESULT_FAILED = 1;
+
+    /** Encoding Constants */
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_COPY_RECT = 1;
+    public static final int ENCODING_HEXTILE = 5;
+    public static final int ENCODING_ZRLE = 16;
+
+    /** Pseudo-encoding Constants */
+    public static final int ENCODING_DESKTOP_SIZE = -223;
+    /** Compression levels 0 to 9 are this plus the level */
+    public static final int ENCODING_COMPRESS_LEVEL_0 = -256;
+
+    /** PointerEvent button mask bits */
+    public static final int LEFT_BUTTON_MASK = 0x01;
+    public static final int MIDDLE_BUTTON_MASK = 0x02;
+    public static final int RIGHT_BUTTON_MASK = 0x04;
+    /** Buttons 4 to 7 are the scroll wheel; a click is a press and release */
+    public static final int WHEEL_UP_MASK = 0x08;
+    public static final int WHEEL_DOWN_MASK = 0x10;
+    public static final int WHEEL_LEFT_MASK = 0x20;
+    public static final int WHEEL_RIGHT_MASK = 0x40;
+
+    /** Message lengths */
+    public static final int POINTER_EVENT_LENGTH = 6;
+    public static final int KEY_EVENT_LENGTH = 8;
+    public static final int FRAMEBUFFER_UPDATE_REQUEST_LENGTH = 10;
+    public static final int SET_PIXEL_FORMAT_LENGTH = 20;
+    public static final int VNC_AUTH_CHALLENGE_LENGTH = 16;
+
+    private RfbProtocol() { }
+
+    /**
+     * Writes a PointerEvent message into the given buffer
+     * @param buf - destination buffer
+     * @param off - offset to start writing at
+     * @param buttonMask - state of buttons 1 to 8, one bit each
+     * @param x - x-coordinate
+     * @param y - y-coordinate
+     * @return the number of bytes written
+     */
+    public static int encodePointerEvent(byte [] buf, int off, int buttonMask, int x, int y) {
+        buf[off] = POINTER_EVENT_TYPE;
+        buf[off + 1] = (byte) (0xFF & buttonMask);
+        putU16(buf, off + 2, x);
+        putU16(buf, off + 4, y);
+        return POINTER_EVENT_LENGTH;
+    }
+
+    /**
+     * Writes a KeyEvent message into the given buffer
+     * @param buf - destination buffer
+     * @param off - offset to start writing at
+     * @param keysym - the X Window System keysym of the key
+     * @param down - indicates if the key is pressed or released
+     * @return the number of bytes written
+     */
+    public static int encodeKeyEvent(byte [] buf, int off, int keysym, boolean down) {
+        buf[off] = KEY_EVENT_TYPE;
+        buf[off + 1] = (byte) (down ? 1 : 0);
+        buf[off + 2] = 0;
+        buf[off + 3] = 0;
+        putU32(buf, off + 4, keysym);
+        return KEY_EVENT_LENGTH;
+    }
+
+    /**
+     * Writes a FramebufferUpdateRequest message into the given buffer
+     * @param buf - destination buffer
+     * @param off - offset to start writing at
+     * @param incremental - only ask for the areas that changed
+     * @return the number of bytes written
+     */
+    public static int encodeFramebufferUpdateRequest(byte [] buf, int off, boolean incremental,
+            int x, int y, int width, int height) {
+        buf[off] = FRAMEBUFFER_UPDATE_REQUEST_TYPE;
+        buf[off + 1] = (byte) (incremental ? 1 : 0);
+        putU16(buf, off + 2, x);
+        putU16(buf, off + 4, y);
+        putU16(buf, off + 6, width);
+        putU16(buf, off + 8, height);
+        return FRAMEBUFFER_UPDATE_REQUEST_LENGTH;
+    }
+
+    /**
+     * Writes a SetPixelFormat message asking for 32 bit little-endian
+     * true colour pixels (blue, green, red, unused), which is the only
+     * format the decoders in RfbDecoder handle
+     * @return the number of bytes written
+     */
+    public static int encodeSetPixelFormat(byte [] buf, int off) {
+        buf[off] = SET_PIXEL_FORMAT_TYPE;
+        buf[off + 1] = 0;
+        buf[off + 2] = 0;
+        buf[off + 3] = 0;
+        // bits-per-pixel, depth, big-endian-flag, true-colour-flag
+        buf[off + 4] = 32;
+        buf[off + 5] = 24;
+        buf[off + 6] = 0;
+        buf[off + 7] = 1;
+        // red-max, green-max, blue-max
+        putU16(buf, off + 8, 255);
+        putU16(buf, off + 10, 255);
+        putU16(buf, off + 12, 255);
+        // red-shift, green-shift, blue-shift, then padding
+        buf[off + 14] = 16;
+        buf[off + 15] = 8;
+        buf[off + 16] = 0;
+        buf[off + 17] = 0;
+        buf[off + 18] = 0;
+        buf[off + 19] = 0;
+        return SET_PIXEL_FORMAT_LENGTH;
+    }
+
+    /**
+     * Builds a SetEncodings message listing the given encodings in
+     * order of preference
+     */
+    public static byte [] encodeSetEncodings(int [] encodings) {
+        byte [] buf = new byte [4 + 4 * encodings.length];
+        buf[0] = SET_ENCODINGS_TYPE;
+        buf[1] = 0;
+        putU16(buf, 2, encodings.length);
+        for (int i = 0; i < encodings.length; i++) {
+            putU32(buf, 4 + 4 * i, encodings[i]);
+        }
+        return buf;
+    }
+
+    /** Stores a big-endian 16 bit value */
+    public static void putU16(byte [] buf, int off, int value) {
+        buf[off] = (byte) ((0xFF00 & value) >> 8);
+        buf[off + 1] = (byte) (0xFF & value);
+    }
+
+    /** Stores a big-endian 32 bit value */
+    public static void putU32(byte [] buf, int off, int value) {
+        buf[off] = (byte) (0xFF & (value >> 24));
+        buf[off + 1] = (byte) (0xFF & (value >> 16));
+        buf[off + 2] = (byte) (0xFF & (value >> 8));
+        buf[off + 3] = (byte) (0xFF & value);
+    }
+
+    /** Reads a big-endian unsigned 16 bit value */
+    public static int getU16(byte [] buf, int off) {
+        return ((0xFF & buf[off]) << 8)
+             | (0xFF & buf[off + 1]);
+    }
+
+    /** Reads a big-endian 32 bit value */
+    public static int getU32(byte [] buf, int off) {
+        return ((0xFF & buf[off]) << 24)
+             | ((0xFF & buf[off + 1]) << 16)
+             | ((0xFF & buf[off + 2]) << 8)
+             | (0xFF & buf[off + 3]);
+    }
+
+    /**
+     * Reads and throws away the given number of bytes
+     */
+    public static void skipFully(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                // skipBytes() may give up early; a read tells us if we hit the end
+                in.readUnsignedByte();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.joelsoncarl.androidremote;
+
+/**
+ * One rectangle of a FramebufferUpdate, with its encoded payload read
+ * off the wire but not yet decoded
+ */
+public class RfbRectangle {
+
+    public final int x;
+    public final int y;
+    public final int width;
+    public final int height;
+    public final int encoding;
+    /** The encoded data that followed the rectangle header */
+    public final byte [] payload;
+
+    public RfbRectangle(int x, int y, int width, int height, int encoding, byte [] payload) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.encoding = encoding;
+        this.payload = payload;
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.joelsoncarl.androidremote;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Starts TLS over an already connected socket for VeNCrypt (see
+ * RfbHandshake).  Like RfbHandshake it doesn't depend on Android.
+ *
+ * VNC servers almost always have self-signed certificates, so rather
+ * than checking them against certificate authorities the first
+ * certificate seen for a server is trusted and pinned, and the
+ * connection is refused if it ever changes, until the pin is forgotten
+ * (PinStore.removePin()).  Some servers make a new certificate each
+ * time they start, so that has to be possible.
+ *
+ * Each server gets an SSLContext of its own that lives for the whole
+ * process.  TLS sessions (and session tickets, where the platform
+ * supports them) are cached in the context, so a reconnect to the same
+ * server resumes the session instead of running a full handshake.
+ */
+public final class RfbTls {
+
+    /**
+     * Remembers the certificate fingerprint pinned for each server
+     */
+    public interface PinStore {
+        /** @return the pinned fingerprint, or null if there isn't one yet */
+        String getPin(String server);
+        void setPin(String server, String fingerprint);
+        /** Forgets the pin, so the next certificate the server presents is trusted */
+        void removePin(String server);
+    }
+
+    /**
+     * Thrown when a server presents a certificate other than the one
+     * pinned for it
+     */
+    public static class CertificateChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /** The server, as "ip:port" */
+        public final String server;
+        /** Fingerprint of the certificate the server presented */
+        public final String fingerprint;
+
+        CertificateChangedException(String server, String fingerprint) {
+            super("Error: The certificate of " + server + " has changed to " + fingerprint
+                    + "; forget the pinned certificate to trust the new one");
+            this.server = server;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Keeps pins for as long as the process runs, for the command-line tools
+     */
+    public static class MemoryPinStore implements PinStore {
+        private Map<String, String> m_pins = new HashMap<String, String>();
+
+        public synchronized String getPin(String server) {
+            return m_pins.get(server);
+        }
+
+        public synchronized void setPin(String server, String fingerprint) {
+            m_pins.put(server, fingerprint);
+        }
+
+        public synchronized void removePin(String server) {
+            m_pins.remove(server);
+        }
+    }
+
+    /**
+     * A socket with TLS started on it
+     */
+    public static class Connection {
+        public final SSLSocket socket;
+        /** Whether the handshake resumed a session from the cache */
+        public final boolean resumed;
+
+        Connection(SSLSocket socket, boolean resumed) {
+            this.socket = socket;
+            this.resumed = resumed;
+        }
+    }
+
+    /** How long a cached session may be resumed */
+    private static final int SESSION_TIMEOUT_S = 24 * 60 * 60;
+
+    /** The SSLContext for each server, by "ip:port" */
+    private static final Map<String, SSLContext> CONTEXTS = new HashMap<String, SSLContext>();
+
+    private RfbTls() { }
+
+    /**
+     * Runs the TLS handshake as the client over the given socket
+     * @param sock - the connected socket, which the result takes over
+     * @param anonymous - use the anonymous Diffie-Hellman cipher suites
+     *        of the VeNCrypt TLS* sub-types rather than a certificate
+     * @param pins - where certificate pins are kept
+     * @return the TLS socket to carry on the protocol over
+     * @throws IOException if the handshake fails or the certificate
+     *         doesn't match the one pinned for the server
+     */
+    public static Connection startClient(Socket sock, boolean anonymous, PinStore pins) throws IOException {
+        String host = sock.getInetAddress().getHostAddress();
+        int port = sock.getPort();
+        String server = serverKey(host, port);
+        SSLContext context = contextFor(server, pins);
+        SSLSocket sslSock = (SSLSocket) context.getSocketFactory().createSocket(sock, host, port, true);
+        sslSock.setUseClientMode(true);
+        if (anonymous) {
+            List<String> suites = new ArrayList<String>();
+            String [] supported = sslSock.getSupportedCipherSuites();
+            for (int i = 0; i < supported.length; i++) {
+                if (supported[i].contains("_anon_")) {
+                    suites.add(supported[i]);
+                }
+            }
+            if (suites.isEmpty()) {
+                sslSock.close();
+                throw new IOException("Error: Anonymous TLS is not available on this device");
+            }
+            sslSock.setEnabledCipherSuites(suites.toArray(new String [suites.size()]));
+        }
+        // A resumed session (or TLS 1.3 ticket) has an ID that was in the
+        // cache before the handshake; a full handshake makes a new one
+        List<byte []> cachedIds = new ArrayList<byte []>();
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessions != null) {
+            for (Enumeration<byte []> ids = sessions.getIds(); ids.hasMoreElements(); ) {
+                cachedIds.add(ids.nextElement());
+            }
+        }
+        try {
+            sslSock.startHandshake();
+        } catch (IOException e) {
+            sslSock.close();
+            // The trust manager's exception arrives wrapped by the TLS stack
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof PinMismatchException) {
+                    throw new CertificateChangedException(server, ((PinMismatchException) cause).m_fingerprint);
+                }
+            }
+            throw e;
+        }
+        byte [] id = sslSock.getSession().getId();
+        boolean resumed = false;
+        for (byte [] cachedId : cachedIds) {
+            if (id != null && id.length > 0 && Arrays.equals(id, cachedId)) {
+                resumed = true;
+                break;
+            }
+        }
+        return new Connection(sslSock, resumed);
+    }
+
+    /**
+     * Gets the fingerprint of the server's certificate, or null for
+     * anonymous TLS
+     */
+    public static String getPeerFingerprint(SSLSocket sock) {
+        try {
+            Certificate [] chain = sock.getSession().getPeerCertificates();
+            return chain.length > 0 ? fingerprint(chain[0]) : null;
+        } catch (IOException e) {
+            return null;
+        } catch (CertificateException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the name pins are kept under for a server
+     * @param host - IP address, as InetAddress.getHostAddress() gives it
+     */
+    public static String serverKey(String host, int port) {
+        return host + ":" + Integer.toString(port);
+    }
+
+    private static synchronized SSLContext contextFor(String server, PinStore pins) throws IOException {
+        SSLContext context = CONTEXTS.get(server);
+        if (context == null) {
+            try {
+                context = SSLContext.getInstance("TLS");
+                context.init(null, new TrustManager [] { new PinningTrustManager(server, pins) }, null);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error: TLS is not available: " + e.getMessage());
+            }
+            SSLSessionContext sessions = context.getClientSessionContext();
+            if (sessions != null) {
+                sessions.setSessionTimeout(SESSION_TIMEOUT_S);
+            }
+            CONTEXTS.put(server, context);
+        }
+        return context;
+    }
+
+    /** SHA-256 of the certificate as colon separated hex */
+    private static String fingerprint(Certificate certificate) throws CertificateException {
+        byte [] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+        } catch (GeneralSecurityException e) {
+            throw new CertificateException(e.getMessage());
+        }
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < digest.length; i++) {
+            if (i > 0) {
+                s.append(':');
+            }
+            s.append(String.format(Locale.US, "%02X", 0xFF & digest[i]));
+        }
+        return s.toString();
+    }
+
+    /**
+     * Thrown by the trust manager, for startClient() to find inside the
+     * handshake's exception
+     */
+    private static class PinMismatchException extends CertificateException {
+        private static final long serialVersionUID = 1L;
+
+        private final String m_fingerprint;
+
+        PinMismatchException(String server, String fingerprint) {
+            super("Certificate for " + server + " has changed to " + fingerprint);
+            m_fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Trusts the first certificate a server presents, then only that one
+     */
+    private static class PinningTrustManager implements X509TrustManager {
+        private String m_server;
+        private PinStore m_pins;
+
+        PinningTrustManager(String server, PinStore pins) {
+            m_server = server;
+            m_pins = pins;
+        }
+
+        public void checkServerTrusted(X509Certificate [] chain, String authType) throws CertificateException {
+            if (chain == null || chain.length == 0) {
+                throw new CertificateException("Server sent no certificate");
+            }
+            String fingerprint = fingerprint(chain[0]);
+            String pin = m_pins.getPin(m_server);
+            if (pin == null) {
+                m_pins.setPin(m_server, fingerprint);
+            }
+            else if (!pin.equals(fingerprint)) {
+                throw new PinMismatchException(m_server, fingerprint);
+            }
+        }
+
+        public void checkClientTrusted(X509Certificate [] chain, String authType) throws CertificateException {
+            throw new CertificateException("Not a server");
+        }
+
+        public X509Certificate [] getAcceptedIssuers() {
+            return new X509Certificate [0];
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+package com.joelsoncarl.androidremote;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Reads server to client messages and applies FramebufferUpdates to the
+ * framebuffer.  Each update is read off the wire in full before any of
+ * it is decoded, so the time spent waiting on the network and the time
+ * spent decoding can be measured separately.
+ *
+ * Given an executor, Raw and Hextile rectangles that don't overlap are
+ * decoded in parallel.  CopyRect reads pixels earlier rectangles may
+ * write, and ZRLE shares one zlib stream across rectangles, so each of
+ * those waits for everything before it and is decoded on its own.
+ */
+public class RfbUpdateReader {
+
+    /**
+     * Told about what the reader has done.  Called on the reading thread.
+     */
+    public interface Listener {
+        /**
+         * A rectangle has been decoded into the framebuffer.  May be
+         * called on one of the executor's threads.
+         */
+        void onRectangleDecoded(int encoding, long pixels, long bytes, long decodeNanos);
+        /**
+         * A whole FramebufferUpdate has been applied
+         * @param damage - the rectangles that changed
+         * @param bytes - size of the update on the wire
+         * @param wireNanos - time from its first byte to its last
+         */
+        void onFramebufferUpdate(RfbFramebuffer fb, List<RfbRectangle> damage, long bytes, long wireNanos);
+        void onBell();
+    }
+
+    /** Batches smaller than this aren't worth handing to other threads */
+    private static final long PARALLEL_MIN_PIXELS = 128 * 128;
+
+    private DataInputStream m_input;
+    private RfbFramebuffer m_framebuffer;
+    private RfbDecoder m_decoder;
+    private Listener m_listener;
+    /** Decodes independent rectangles in parallel, or null to decode in order */
+    private ExecutorService m_executor;
+    /** Held while the framebuffer is written to, or null */
+    private Lock m_lock;
+    private byte [] m_header;
+
+    /**
+     * Constructor for RfbUpdateReader
+     * @param executor - for decoding rectangles in parallel, may be null
+     */
+    public RfbUpdateReader(DataInputStream input, RfbFramebuffer fb, Listener listener, ExecutorService executor) {
+        m_input = input;
+        m_framebuffer = fb;
+        m_decoder = new RfbDecoder();
+        m_listener = listener;
+        m_executor = executor;
+        m_header = new byte [12];
+    }
+
+    /**
+     * Sets a lock to hold while decoding into (or replacing) the
+     * framebuffer, so that a reader of it never sees half an update.  It
+     * isn't held while waiting on the network.
+     */
+    public void setFramebufferLock(Lock lock) {
+        m_lock = lock;
+    }
+
+    /**
+     * Frees the decoder's native resources, once reading has stopped
+     */
+    public void close() {
+        m_decoder.close();
+    }
+
+    /** The framebuffer, which is replaced when the server changes size */
+    public RfbFramebuffer getFramebuffer() {
+        return m_framebuffer;
+    }
+
+    /**
+     * Reads and handles one message from the server, blocking until it
+     * arrives
+     * @return the message type
+     */
+    public int readMessage() throws IOException {
+        int messageType = m_input.readUnsignedByte();
+        switch (messageType) {
+        case RfbProtocol.FRAMEBUFFER_UPDATE:
+            readFramebufferUpdate();
+            break;
+        case RfbProtocol.SET_COLOUR_MAP_ENTRIES:
+            // We asked for true colour, so there's nothing to use here
+            m_input.readUnsignedByte();
+            m_input.readUnsignedShort();
+            RfbProtocol.skipFully(m_input, 6L * m_input.readUnsignedShort());
+            break;
+        case RfbProtocol.BELL:
+            m_listener.onBell();
+            break;
+        case RfbProtocol.SERVER_CUT_TEXT:
+            RfbProtocol.skipFully(m_input, 3);
+            RfbProtocol.skipFully(m_input, 0xFFFFFFFFL & m_input.readInt());
+            break;
+        default:
+            throw new IOException("Unknown server message type " + Integer.toString(messageType));
+        }
+        return messageType;
+    }
+
+    private void readFramebufferUpdate() throws IOException {
+        long start = System.nanoTime();
+        m_input.readUnsignedByte();
+        int numberOfRectangles = m_input.readUnsignedShort();
+        long bytes = 4;
+        List<RfbRectangle> rects = new ArrayList<RfbRectangle>(numberOfRectangles);
+        // The size the rectangles must fit, changed by a DesktopSize
+        int fbWidth = m_framebuffer.width;
+        int fbHeight = m_framebuffer.height;
+        for (int i = 0; i < numberOfRectangles; i++) {
+            m_input.readFully(m_header, 0, 12);
+            int x = RfbProtocol.getU16(m_header, 0);
+            int y = RfbProtocol.getU16(m_header, 2);
+            int width = RfbProtocol.getU16(m_header, 4);
+            int height = RfbProtocol.getU16(m_header, 6);
+            int encoding = RfbProtocol.getU32(m_header, 8);
+            bytes += 12;
+            if (encoding == RfbProtocol.ENCODING_DESKTOP_SIZE) {
+                if ((long) width * height > RfbFramebuffer.MAX_PIXELS) {
+                    throw new IOException("Screen size " + Integer.toString(width) + "x"
+                            + Integer.toString(height) + " is too large");
+                }
+                fbWidth = width;
+                fbHeight = height;
+                rects.add(new RfbRectangle(x, y, width, height, encoding, null));
+                continue;
+            }
+            // Check before reading, as the payload size comes from the header
+            if (!RfbFramebuffer.contains(fbWidth, fbHeight, x, y, width, height)) {
+                throw new IOException("Rectangle outside the framebuffer");
+            }
+            byte [] payload = RfbDecoder.readPayload(m_input, encoding, width, height);
+            bytes += payload.length;
+            rects.add(new RfbRectangle(x, y, width, height, encoding, payload));
+        }
+        long wireNanos = System.nanoTime() - start;
+
+        if (m_lock != null) {
+            m_lock.lock();
+        }
+        try {
+            decodeAll(rects);
+        } finally {
+            if (m_lock != null) {
+                m_lock.unlock();
+            }
+        }
+        m_listener.onFramebufferUpdate(m_framebuffer, rects, bytes, wireNanos);
+    }
+
+    /**
+     * Gathers independent rectangles into a batch, and decodes the batch
+     * whenever the next rectangle has to wait for it
+     */
+    private void decodeAll(List<RfbRectangle> rects) throws IOException {
+        List<RfbRectangle> batch = new ArrayList<RfbRectangle>();
+        long batchPixels = 0;
+        for (RfbRectangle rect : rects) {
+            boolean independent = rect.encoding == RfbProtocol.ENCODING_RAW
+                               || rect.encoding == RfbProtocol.ENCODING_HEXTILE;
+            if (!independent || overlapsAny(rect, batch)) {
+                decodeBatch(batch, batchPixels);
+                batch.clear();
+                batchPixels = 0;
+            }
+            if (independent) {
+                batch.add(rect);
+                batchPixels += (long) rect.width * rect.height;
+            }
+            else if (rect.encoding == RfbProtocol.ENCODING_DESKTOP_SIZE) {
+                m_framebuffer = new RfbFramebuffer(rect.width, rect.height);
+            }
+            else {
+                decode(rect);
+            }
+        }
+        decodeBatch(batch, batchPixels);
+    }
+
+    private static boolean overlapsAny(RfbRectangle rect, List<RfbRectangle> batch) {
+        for (RfbRectangle other : batch) {
+            if (rect.x < other.x + other.width && other.x < rect.x + rect.width
+                    && rect.y < other.y + other.height && other.y < rect.y + rect.height) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void decode(RfbRectangle rect) throws IOException {
+        long decodeStart = System.nanoTime();
+        m_decoder.decode(rect, m_framebuffer);
+        m_listener.onRectangleDecoded(rect.encoding, (long) rect.width * rect.height,
+                rect.payload.length, System.nanoTime() - decodeStart);
+    }
+
+    /**
+     * Decodes a batch of rectangles that don't overlap or depend on each
+     * other, in parallel if it is big enough, and waits for them all
+     */
+    private void decodeBatch(List<RfbRectangle> batch, long batchPixels) throws IOException {
+        if (m_executor == null || batch.size() < 2 || batchPixels < PARALLEL_MIN_PIXELS) {
+            for (RfbRectangle rect : batch) {
+                decode(rect);
+            }
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(batch.size());
+        for (final RfbRectangle rect : batch) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    decode(rect);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> result : m_executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while decoding");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error decoding rectangle: " + e.getCause());
+        }
+    }
+
+}
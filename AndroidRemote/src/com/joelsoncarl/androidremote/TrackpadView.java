@@ -0,0 +1,174 @@
+package com.joelsoncarl.androidremote;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * A touch surface for moving the remote pointer: one finger moves it,
+ * two fingers scroll.  Touch events only feed the connection's
+ * RfbPointerBatcher; once per display frame whatever has built up is
+ * sent as a single write, however fast the touch events arrive.
+ */
+public class TrackpadView extends View {
+
+    /** Frame interval where the display's frame timing isn't available */
+    private static final long FALLBACK_FRAME_MS = 16;
+
+    /** What the fingers on the surface are doing */
+    private enum Gesture {
+        NONE, MOVE, SCROLL
+    }
+
+    private RfbClient m_rfbClient;
+    private Gesture m_gesture;
+    /** Where the finger (or the middle of two) was at the last event */
+    private float m_lastX, m_lastY;
+    private long m_lastTime;
+    private boolean m_framePending;
+    private byte [] m_batch;
+    private Runnable m_sendFrame;
+
+    public TrackpadView(Context context) {
+        super(context);
+        init();
+    }
+
+    public TrackpadView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        m_gesture = Gesture.NONE;
+        m_framePending = false;
+        m_batch = new byte [RfbPointerBatcher.MAX_BATCH_LENGTH];
+        m_sendFrame = new Runnable() {
+            public void run() {
+                sendFrame();
+            }
+        };
+    }
+
+    /**
+     * Connects the trackpad to the client whose pointer it moves
+     */
+    public void setRfbClient(RfbClient client) {
+        m_rfbClient = client;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        RfbPointerBatcher pointer = m_rfbClient != null ? m_rfbClient.getPointer() : null;
+        if (pointer == null) {
+            return false;
+        }
+        switch (event.getActionMasked()) {
+        case MotionEvent.ACTION_DOWN:
+            m_gesture = Gesture.MOVE;
+            pointer.resetSpeed();
+            startGesture(event);
+            break;
+        case MotionEvent.ACTION_POINTER_DOWN:
+            // A second finger turns a move into a scroll; any more and
+            // we wait for them all to lift
+            m_gesture = event.getPointerCount() == 2 ? Gesture.SCROLL : Gesture.NONE;
+            startGesture(event);
+            break;
+        case MotionEvent.ACTION_POINTER_UP:
+            // Lifting one of two fingers would otherwise jump the pointer
+            m_gesture = Gesture.NONE;
+            break;
+        case MotionEvent.ACTION_MOVE:
+            if (m_gesture == Gesture.MOVE) {
+                float x = event.getX(0);
+                float y = event.getY(0);
+                pointer.move(x - m_lastX, y - m_lastY, event.getEventTime() - m_lastTime);
+                m_lastX = x;
+                m_lastY = y;
+                m_lastTime = event.getEventTime();
+                requestFrame();
+            }
+            else if (m_gesture == Gesture.SCROLL) {
+                float x = (event.getX(0) + event.getX(1)) / 2;
+                float y = (event.getY(0) + event.getY(1)) / 2;
+                pointer.scroll(x - m_lastX, y - m_lastY);
+                m_lastX = x;
+                m_lastY = y;
+                requestFrame();
+            }
+            break;
+        case MotionEvent.ACTION_UP:
+        case MotionEvent.ACTION_CANCEL:
+            m_gesture = Gesture.NONE;
+            break;
+        default:
+            break;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers where a gesture starts from
+     */
+    private void startGesture(MotionEvent event) {
+        if (m_gesture == Gesture.SCROLL) {
+            m_lastX = (event.getX(0) + event.getX(1)) / 2;
+            m_lastY = (event.getY(0) + event.getY(1)) / 2;
+        }
+        else {
+            m_lastX = event.getX(0);
+            m_lastY = event.getY(0);
+        }
+        m_lastTime = event.getEventTime();
+    }
+
+    private void requestFrame() {
+        if (m_framePending) {
+            return;
+        }
+        m_framePending = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postOnNextFrame();
+        }
+        else {
+            postDelayed(m_sendFrame, FALLBACK_FRAME_MS);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postOnNextFrame() {
+        postOnAnimation(m_sendFrame);
+    }
+
+    /**
+     * Sends what has built up since the last frame
+     */
+    private void sendFrame() {
+        m_framePending = false;
+        RfbPointerBatcher pointer = m_rfbClient.getPointer();
+        if (pointer == null) {
+            return;
+        }
+        int length = pointer.drain(m_batch, m_rfbClient.getButtonMask());
+        if (length > 0) {
+            m_rfbClient.pointerEvents(m_batch, length);
+        }
+        // A fast fling can scroll more than one frame's worth
+        if (pointer.hasPendingScroll()) {
+            requestFrame();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(m_sendFrame);
+        m_framePending = false;
+        m_gesture = Gesture.NONE;
+    }
+
+}
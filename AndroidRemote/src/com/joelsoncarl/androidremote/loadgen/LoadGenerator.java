@@ -0,0 +1,173 @@
+package com.joelsoncarl.androidremote.loadgen;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.joelsoncarl.androidremote.RfbHandshake;
+
+/**
+ * Headless load generator for finding out how many concurrent remote
+ * sessions an RFB server can take.  Opens a number of sessions using the
+ * app's own handshake and message encoding, replays input at a fixed
+ * rate on each, and reports connect time, input latency and update
+ * throughput percentiles as CSV or JSON on standard output.
+ *
+ * Uses nothing from Android, so it runs on a desktop JVM with only this
+ * package, RfbProtocol and RfbHandshake on the classpath.
+ */
+public class LoadGenerator {
+
+    private static final double [] PERCENTILES = { 50, 90, 95, 99 };
+
+    public static void main(String [] args) throws InterruptedException {
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(LoadOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        List<LoadSession> sessions = run(options);
+        report(options, sessions, System.out);
+    }
+
+    /**
+     * Starts every session (spaced out by the ramp delay) and waits for
+     * them all to finish
+     */
+    static List<LoadSession> run(LoadOptions options) throws InterruptedException {
+        List<LoadSession> sessions = new ArrayList<LoadSession>();
+        ExecutorService pool = Executors.newFixedThreadPool(options.sessions);
+        for (int i = 0; i < options.sessions; i++) {
+            LoadSession session = new LoadSession(options, i);
+            sessions.add(session);
+            pool.execute(session);
+            if (options.rampMs > 0 && i + 1 < options.sessions) {
+                Thread.sleep(options.rampMs);
+            }
+        }
+        pool.shutdown();
+        while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+            // Keep waiting; each session stops on its own after its duration
+        }
+        return sessions;
+    }
+
+    /**
+     * Prints the combined results of all sessions
+     */
+    static void report(LoadOptions options, List<LoadSession> sessions, PrintStream out) {
+        SampleRecorder connectMs = new SampleRecorder();
+        SampleRecorder inputLatencyMs = new SampleRecorder();
+        SampleRecorder updatesPerSecond = new SampleRecorder();
+        SampleRecorder updateKBytesPerSecond = new SampleRecorder();
+        SampleRecorder [] phaseMs = new SampleRecorder [RfbHandshake.PHASE_NAMES.length];
+        for (int i = 0; i < phaseMs.length; i++) {
+            phaseMs[i] = new SampleRecorder();
+        }
+        int failed = 0;
+        for (LoadSession session : sessions) {
+            if (!session.succeeded()) {
+                failed++;
+                System.err.println("Session failed: " + session.getError());
+                continue;
+            }
+            connectMs.record(session.getConnectNanos() / 1e6);
+            for (int i = 0; i < phaseMs.length; i++) {
+                phaseMs[i].record(session.getPhaseNanos(i) / 1e6);
+            }
+            double [] latencies = session.getInputLatency().snapshot();
+            for (int i = 0; i < latencies.length; i++) {
+                inputLatencyMs.record(latencies[i] / 1e6);
+            }
+            updatesPerSecond.record(session.getUpdatesPerSecond());
+            updateKBytesPerSecond.record(session.getUpdateBytesPerSecond() / 1024);
+        }
+
+        // Per-phase handshake times follow the overall connect time
+        int phases = RfbHandshake.PHASE_NAMES.length;
+        String [] names = new String [4 + phases];
+        SampleRecorder [] metrics = new SampleRecorder [4 + phases];
+        names[0] = "connect_ms";
+        metrics[0] = connectMs;
+        for (int i = 0; i < phases; i++) {
+            names[1 + i] = "handshake_" + RfbHandshake.PHASE_NAMES[i] + "_ms";
+            metrics[1 + i] = phaseMs[i];
+        }
+        names[1 + phases] = "input_latency_ms";
+        metrics[1 + phases] = inputLatencyMs;
+        names[2 + phases] = "updates_per_s";
+        metrics[2 + phases] = updatesPerSecond;
+        names[3 + phases] = "update_kbytes_per_s";
+        metrics[3 + phases] = updateKBytesPerSecond;
+        if (options.format.equals("json")) {
+            reportJson(options, sessions.size(), failed, names, metrics, out);
+        }
+        else {
+            reportCsv(options, sessions.size(), failed, names, metrics, out);
+        }
+    }
+
+    private static void reportCsv(LoadOptions options, int total, int failed,
+            String [] names, SampleRecorder [] metrics, PrintStream out) {
+        StringBuilder header = new StringBuilder("metric,sessions,failed,count,min");
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            header.append(",p").append((int) PERCENTILES[i]);
+        }
+        header.append(",max");
+        out.println(header);
+        for (int m = 0; m < names.length; m++) {
+            double [] sorted = metrics[m].snapshot();
+            StringBuilder row = new StringBuilder(names[m]);
+            row.append(',').append(total).append(',').append(failed).append(',').append(sorted.length);
+            row.append(',').append(format(sorted.length > 0 ? sorted[0] : Double.NaN));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                row.append(',').append(format(SampleRecorder.percentile(sorted, PERCENTILES[i])));
+            }
+            row.append(',').append(format(sorted.length > 0 ? sorted[sorted.length - 1] : Double.NaN));
+            out.println(row);
+        }
+    }
+
+    private static void reportJson(LoadOptions options, int total, int failed,
+            String [] names, SampleRecorder [] metrics, PrintStream out) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"host\": \"").append(options.host.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+        json.append("  \"port\": ").append(options.port).append(",\n");
+        json.append("  \"pattern\": \"").append(options.pattern).append("\",\n");
+        json.append("  \"sessions\": ").append(total).append(",\n");
+        json.append("  \"failed\": ").append(failed).append(",\n");
+        json.append("  \"metrics\": {\n");
+        for (int m = 0; m < names.length; m++) {
+            double [] sorted = metrics[m].snapshot();
+            json.append("    \"").append(names[m]).append("\": {");
+            json.append("\"count\": ").append(sorted.length);
+            json.append(", \"min\": ").append(jsonNumber(sorted.length > 0 ? sorted[0] : Double.NaN));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                json.append(", \"p").append((int) PERCENTILES[i]).append("\": ");
+                json.append(jsonNumber(SampleRecorder.percentile(sorted, PERCENTILES[i])));
+            }
+            json.append(", \"max\": ").append(jsonNumber(sorted.length > 0 ? sorted[sorted.length - 1] : Double.NaN));
+            json.append(m + 1 < names.length ? "},\n" : "}\n");
+        }
+        json.append("  }\n}");
+        out.println(json);
+    }
+
+    private static String format(double value) {
+        return Double.isNaN(value) ? "" : String.format(Locale.US, "%.3f", value);
+    }
+
+    private static String jsonNumber(double value) {
+        return Double.isNaN(value) ? "null" : String.format(Locale.US, "%.3f", value);
+    }
+
+}
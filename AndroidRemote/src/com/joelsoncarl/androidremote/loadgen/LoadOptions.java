@@ -0,0 +1,132 @@
+package com.joelsoncarl.androidremote.loadgen;
+
+/**
+ * Command-line settings for a load generator run
+ */
+class LoadOptions {
+
+    String host = null;
+    int port = 5900;
+    /** Number of concurrent sessions */
+    int sessions = 10;
+    /** Delay between starting consecutive sessions */
+    int rampMs = 0;
+    /** How long each session replays input once connected */
+    int durationMs = 30000;
+    int connectTimeoutMs = 5000;
+    /** One of pointer, click, key or mixed */
+    String pattern = "pointer";
+    /** Input events per second, per session */
+    int inputRate = 10;
+    /** Extra incremental FramebufferUpdateRequests per second, per session */
+    int updateRate = 0;
+    /** Ask the server to keep other clients connected */
+    boolean shared = true;
+    /** Password for VNC Authentication, or null */
+    String password = null;
+    /** Fail sessions the server won't encrypt */
+    boolean encryptedOnly = false;
+    /** One of csv or json */
+    String format = "csv";
+
+    static final String USAGE =
+        "Usage: LoadGenerator --host <ip> [options]\n"
+      + "  --port <n>              RFB server port (default 5900)\n"
+      + "  --sessions <n>          concurrent sessions (default 10)\n"
+      + "  --ramp <ms>             delay between session starts (default 0)\n"
+      + "  --duration <ms>         input replay time per session (default 30000)\n"
+      + "  --connect-timeout <ms>  socket connect timeout (default 5000)\n"
+      + "  --pattern <p>           pointer, click, key or mixed (default pointer);\n"
+      + "                          input latency is only measured for pointer movement\n"
+      + "  --input-rate <hz>       input events per second per session (default 10)\n"
+      + "  --update-rate <hz>      extra update requests per second per session, skipped\n"
+      + "                          while one is outstanding (default 0)\n"
+      + "  --exclusive             ask the server to disconnect other clients\n"
+      + "  --password <p>          password for VNC authentication\n"
+      + "  --encrypted-only        fail sessions the server won't encrypt (VeNCrypt)\n"
+      + "  --format <f>            csv or json (default csv)\n";
+
+    /**
+     * Parses the command line
+     * @throws IllegalArgumentException with a description of the problem
+     */
+    static LoadOptions parse(String [] args) {
+        LoadOptions options = new LoadOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--exclusive")) {
+                options.shared = false;
+                continue;
+            }
+            if (arg.equals("--encrypted-only")) {
+                options.encryptedOnly = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--host")) {
+                options.host = value;
+            }
+            else if (arg.equals("--password")) {
+                options.password = value;
+            }
+            else if (arg.equals("--port")) {
+                options.port = parseInt(arg, value, 1, 65535);
+            }
+            else if (arg.equals("--sessions")) {
+                options.sessions = parseInt(arg, value, 1, 10000);
+            }
+            else if (arg.equals("--ramp")) {
+                options.rampMs = parseInt(arg, value, 0, Integer.MAX_VALUE);
+            }
+            else if (arg.equals("--duration")) {
+                options.durationMs = parseInt(arg, value, 1, Integer.MAX_VALUE);
+            }
+            else if (arg.equals("--connect-timeout")) {
+                options.connectTimeoutMs = parseInt(arg, value, 1, Integer.MAX_VALUE);
+            }
+            else if (arg.equals("--pattern")) {
+                if (!value.equals("pointer") && !value.equals("click")
+                        && !value.equals("key") && !value.equals("mixed")) {
+                    throw new IllegalArgumentException("Unknown pattern " + value);
+                }
+                options.pattern = value;
+            }
+            else if (arg.equals("--input-rate")) {
+                options.inputRate = parseInt(arg, value, 0, 1000);
+            }
+            else if (arg.equals("--update-rate")) {
+                options.updateRate = parseInt(arg, value, 0, 1000);
+            }
+            else if (arg.equals("--format")) {
+                if (!value.equals("csv") && !value.equals("json")) {
+                    throw new IllegalArgumentException("Unknown format " + value);
+                }
+                options.format = value;
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (options.host == null) {
+            throw new IllegalArgumentException("--host is required");
+        }
+        return options;
+    }
+
+    private static int parseInt(String arg, String value, int min, int max) {
+        int n;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number for " + arg + ": " + value);
+        }
+        if (n < min || n > max) {
+            throw new IllegalArgumentException(arg + " must be between " + min + " and " + max);
+        }
+        return n;
+    }
+
+}
@@ -0,0 +1,347 @@
+package com.joelsoncarl.androidremote.loadgen;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.joelsoncarl.androidremote.RfbHandshake;
+import com.joelsoncarl.androidremote.RfbProtocol;
+
+/**
+ * One simulated remote session.  Connects, runs the normal client
+ * handshake, then replays the configured input pattern while a reader
+ * thread consumes the server's messages.
+ *
+ * Like the app, a session keeps at most one FramebufferUpdateRequest
+ * outstanding: an input sent while one is waiting goes without a request
+ * of its own, and update polls are skipped.  The next FramebufferUpdate
+ * therefore always answers the request sent last, even on a screen that
+ * changes all the time, and servers that merge pending requests can't
+ * throw the count out.
+ *
+ * Input latency is the time from sending an input event, together with
+ * its request, to the start of the FramebufferUpdate answering that
+ * request.  Only inputs sent while no request was outstanding are timed.
+ * We do not advertise any cursor pseudo-encodings, so the server draws
+ * the cursor itself and pointer movement produces an update.  Key
+ * presses and clicks needn't change the screen at all, so only pointer
+ * movement is timed; with the "key" pattern there are no latency samples.
+ */
+class LoadSession implements Runnable {
+
+    /** Keysym sent by the "key" pattern (Shift_L, which is harmless) */
+    private static final int PROBE_KEYSYM = 0xFFE1;
+
+    /** We only ask for encodings we can skip without decoding */
+    private static final int [] ENCODINGS = {
+        RfbProtocol.ENCODING_RAW, RfbProtocol.ENCODING_COPY_RECT
+    };
+
+    private final LoadOptions m_options;
+    private final int m_index;
+
+    /** Set from sending a FramebufferUpdateRequest until its update arrives */
+    private final AtomicBoolean m_requestOutstanding;
+    /** Send time (System.nanoTime()) of the input the outstanding request was sent with, or 0 */
+    private volatile long m_pendingInputNanos;
+    /** Measured input latencies in nanoseconds */
+    private final SampleRecorder m_inputLatency;
+
+    /** Results, valid once run() returns */
+    private long m_connectNanos;
+    /** Time in each handshake phase, see RfbHandshake.getPhaseNanos() */
+    private long [] m_phaseNanos;
+    private volatile long m_updates;
+    private volatile long m_updateBytes;
+    private long m_measuredNanos;
+    private String m_error;
+    /** Why the reader thread stopped early, or null */
+    private volatile String m_readError;
+    /** Set when the socket is closed at the end of the run */
+    private volatile boolean m_closing;
+
+    private Socket m_sock;
+    private DataInputStream m_input;
+    private DataOutputStream m_output;
+    private RfbHandshake.ServerInit m_serverInit;
+    /** Scratch buffers for the writing and reading threads */
+    private byte [] m_data;
+    private byte [] m_readData;
+
+    LoadSession(LoadOptions options, int index) {
+        m_options = options;
+        m_index = index;
+        m_requestOutstanding = new AtomicBoolean(false);
+        m_pendingInputNanos = 0;
+        m_inputLatency = new SampleRecorder();
+        m_data = new byte [64];
+        m_readData = new byte [16];
+        m_connectNanos = -1;
+        m_phaseNanos = new long [RfbHandshake.PHASE_NAMES.length];
+    }
+
+    @Override
+    public void run() {
+        Thread reader = null;
+        try {
+            connect();
+            reader = new Thread(new Runnable() {
+                public void run() {
+                    readServerMessages();
+                }
+            }, "loadgen-reader-" + m_index);
+            reader.setDaemon(true);
+            reader.start();
+            replayInput();
+        } catch (IOException e) {
+            m_error = e.getMessage() != null ? e.getMessage() : e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+        // Wait for the reader so that an error it hit is seen in the results
+        if (reader != null) {
+            try {
+                reader.join(m_options.connectTimeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Opens the socket and runs the handshake, timing both together
+     */
+    private void connect() throws IOException {
+        long start = System.nanoTime();
+        m_sock = new Socket();
+        m_sock.setTcpNoDelay(true);
+        m_sock.connect(new InetSocketAddress(m_options.host, m_options.port), m_options.connectTimeoutMs);
+        RfbHandshake handshake = new RfbHandshake(m_sock, null);
+        handshake.setPassword(m_options.password);
+        handshake.setAllowPlaintext(!m_options.encryptedOnly);
+        m_serverInit = handshake.run(m_options.shared);
+        m_sock = handshake.getSocket();
+        m_input = handshake.getInput();
+        m_output = handshake.getOutput();
+        m_connectNanos = System.nanoTime() - start;
+        for (int i = 0; i < m_phaseNanos.length; i++) {
+            m_phaseNanos[i] = handshake.getPhaseNanos(i);
+        }
+
+        m_output.write(RfbProtocol.encodeSetEncodings(ENCODINGS));
+        sendUpdateRequest(false);
+    }
+
+    /**
+     * Sends input and update requests at the configured rates until the
+     * session's time is up.  Update polls are skipped while a request is
+     * outstanding.
+     */
+    private void replayInput() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long end = start + m_options.durationMs * 1000000L;
+        // A rate of zero means never, which we get by scheduling past the end
+        long inputInterval = m_options.inputRate > 0 ? 1000000000L / m_options.inputRate : end - start + 1;
+        long updateInterval = m_options.updateRate > 0 ? 1000000000L / m_options.updateRate : end - start + 1;
+        long nextInput = m_options.inputRate > 0 ? start : end + 1;
+        long nextUpdate = start + updateInterval;
+        int step = 0;
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            if (now >= nextInput) {
+                sendInput(step++);
+                nextInput += inputInterval;
+            }
+            if (now >= nextUpdate) {
+                sendUpdateRequest(true);
+                nextUpdate += updateInterval;
+            }
+            long sleepNanos = Math.min(Math.min(nextInput, nextUpdate), end) - System.nanoTime();
+            if (sleepNanos > 0) {
+                Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+            }
+        }
+        m_measuredNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Sends one step of the input pattern, followed by an incremental
+     * update request in the same write if none is outstanding
+     */
+    private void sendInput(int step) throws IOException {
+        int centreX = m_serverInit.fbWidth / 2;
+        int centreY = m_serverInit.fbHeight / 2;
+        String pattern = m_options.pattern;
+        if (pattern.equals("mixed")) {
+            pattern = (step % 2 == 0) ? "pointer" : "key";
+        }
+
+        int length = 0;
+        boolean timed = false;
+        if (pattern.equals("pointer")) {
+            // Walk the pointer round a small circle about the centre
+            double angle = (step % 36) * Math.PI / 18;
+            int x = centreX + (int) (20 * Math.cos(angle));
+            int y = centreY + (int) (20 * Math.sin(angle));
+            length += RfbProtocol.encodePointerEvent(m_data, length, 0, x, y);
+            timed = true;
+        }
+        else if (pattern.equals("click")) {
+            length += RfbProtocol.encodePointerEvent(m_data, length, RfbProtocol.LEFT_BUTTON_MASK, centreX, centreY);
+            length += RfbProtocol.encodePointerEvent(m_data, length, 0, centreX, centreY);
+        }
+        else {
+            length += RfbProtocol.encodeKeyEvent(m_data, length, PROBE_KEYSYM, true);
+            length += RfbProtocol.encodeKeyEvent(m_data, length, PROBE_KEYSYM, false);
+        }
+        if (m_requestOutstanding.compareAndSet(false, true)) {
+            length += RfbProtocol.encodeFramebufferUpdateRequest(m_data, length, true,
+                    0, 0, m_serverInit.fbWidth, m_serverInit.fbHeight);
+            m_pendingInputNanos = timed ? System.nanoTime() : 0;
+        }
+        m_output.write(m_data, 0, length);
+    }
+
+    /**
+     * Sends an update request unless one is outstanding already
+     */
+    private void sendUpdateRequest(boolean incremental) throws IOException {
+        if (!m_requestOutstanding.compareAndSet(false, true)) {
+            return;
+        }
+        m_pendingInputNanos = 0;
+        int length = RfbProtocol.encodeFramebufferUpdateRequest(m_data, 0, incremental,
+                0, 0, m_serverInit.fbWidth, m_serverInit.fbHeight);
+        m_output.write(m_data, 0, length);
+    }
+
+    /**
+     * Reads (and throws away) server messages, recording when each
+     * FramebufferUpdate arrives.  Runs until the socket is closed; if it
+     * stops before then the session counts as failed.
+     */
+    private void readServerMessages() {
+        int bytesPerPixel = Math.max(1, m_serverInit.bitsPerPixel / 8);
+        try {
+            while (true) {
+                int messageType = m_input.readUnsignedByte();
+                switch (messageType) {
+                case RfbProtocol.FRAMEBUFFER_UPDATE:
+                    // This answers the one outstanding request
+                    long sent = m_pendingInputNanos;
+                    if (sent != 0) {
+                        m_inputLatency.record(System.nanoTime() - sent);
+                        m_pendingInputNanos = 0;
+                    }
+                    m_requestOutstanding.set(false);
+                    m_updateBytes += skipFramebufferUpdate(bytesPerPixel);
+                    m_updates++;
+                    break;
+                case RfbProtocol.SET_COLOUR_MAP_ENTRIES:
+                    m_input.readUnsignedByte();
+                    m_input.readUnsignedShort();
+                    RfbProtocol.skipFully(m_input, 6L * m_input.readUnsignedShort());
+                    break;
+                case RfbProtocol.BELL:
+                    break;
+                case RfbProtocol.SERVER_CUT_TEXT:
+                    RfbProtocol.skipFully(m_input, 3);
+                    RfbProtocol.skipFully(m_input, 0xFFFFFFFFL & m_input.readInt());
+                    break;
+                default:
+                    throw new IOException("Unknown server message type " + Integer.toString(messageType));
+                }
+            }
+        } catch (IOException e) {
+            // Closing the socket at the end of the run ends the read too
+            if (!m_closing) {
+                m_readError = "Error reading from server: "
+                        + (e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+        }
+    }
+
+    /**
+     * Skips over the rectangles of a FramebufferUpdate
+     * @return the number of bytes the update took on the wire
+     */
+    private long skipFramebufferUpdate(int bytesPerPixel) throws IOException {
+        m_input.readUnsignedByte();
+        int numberOfRectangles = m_input.readUnsignedShort();
+        long bytes = 3;
+        for (int i = 0; i < numberOfRectangles; i++) {
+            m_input.readFully(m_readData, 0, 12);
+            int width = RfbProtocol.getU16(m_readData, 4);
+            int height = RfbProtocol.getU16(m_readData, 6);
+            int encoding = RfbProtocol.getU32(m_readData, 8);
+            long payload;
+            if (encoding == RfbProtocol.ENCODING_RAW) {
+                payload = (long) width * height * bytesPerPixel;
+            }
+            else if (encoding == RfbProtocol.ENCODING_COPY_RECT) {
+                payload = 4;
+            }
+            else {
+                throw new IOException("Unexpected encoding " + Integer.toString(encoding));
+            }
+            RfbProtocol.skipFully(m_input, payload);
+            bytes += 12 + payload;
+        }
+        return bytes;
+    }
+
+    private void close() {
+        m_closing = true;
+        if (m_sock != null) {
+            try {
+                m_sock.close();
+            } catch (IOException e) {
+                // Do nothing
+            }
+        }
+    }
+
+    boolean succeeded() {
+        return getError() == null && m_connectNanos >= 0;
+    }
+
+    String getError() {
+        return m_error != null ? m_error : m_readError;
+    }
+
+    long getConnectNanos() {
+        return m_connectNanos;
+    }
+
+    /**
+     * Gets the time spent in a handshake phase
+     * @param phase - one of the RfbHandshake.PHASE_ constants
+     */
+    long getPhaseNanos(int phase) {
+        return m_phaseNanos[phase];
+    }
+
+    SampleRecorder getInputLatency() {
+        return m_inputLatency;
+    }
+
+    /** FramebufferUpdates received per second over the replay period */
+    double getUpdatesPerSecond() {
+        return m_measuredNanos > 0 ? m_updates * 1e9 / m_measuredNanos : 0;
+    }
+
+    /** FramebufferUpdate bytes received per second over the replay period */
+    double getUpdateBytesPerSecond() {
+        return m_measuredNanos > 0 ? m_updateBytes * 1e9 / m_measuredNanos : 0;
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.joelsoncarl.androidremote.loadgen;
+
+import java.util.Arrays;
+
+/**
+ * Collects samples and reports percentiles over them.  Samples are kept
+ * in full (a run produces at most a few hundred thousand), so the
+ * percentiles are exact.
+ */
+class SampleRecorder {
+
+    private double [] m_samples;
+    private int m_count;
+
+    SampleRecorder() {
+        m_samples = new double [256];
+        m_count = 0;
+    }
+
+    synchronized void record(double sample) {
+        if (m_count == m_samples.length) {
+            m_samples = Arrays.copyOf(m_samples, m_count * 2);
+        }
+        m_samples[m_count++] = sample;
+    }
+
+    synchronized int count() {
+        return m_count;
+    }
+
+    /** A sorted copy of the samples recorded so far */
+    synchronized double [] snapshot() {
+        double [] samples = Arrays.copyOf(m_samples, m_count);
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    /**
+     * Nearest-rank percentile of already sorted samples
+     * @param sorted - samples in ascending order
+     * @param percent - 0 to 100
+     */
+    static double percentile(double [] sorted, double percent) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+    }
+
+}